@@ -0,0 +1,115 @@
+package org.aes.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactory;
+import org.apache.hc.core5.http.io.SocketConfig;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.ssl.SSLContexts;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestClient;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+
+/*
+ * One pooled HTTP client for all Drive traffic. Connections are kept alive and reused, so a chunk PUT doesn't pay a
+ * new TCP and TLS handshake, and the socket buffers are sized for multi MB chunk bodies. Pool usage is exported as
+ * httpcomponents.httpclient.pool.* and every TLS handshake counts towards http.client.tls.handshakes, which should
+ * stay far below the number of requests.
+ */
+@Configuration
+public class HttpClientConfig {
+	
+	@Value("${http.client.max.connections}")
+	private int maxConnections;
+	
+	@Value("${http.client.max.connections.per.route}")
+	private int maxConnectionsPerRoute;
+	
+	@Value("${http.client.connect.timeout}")
+	private long connectTimeout; // In Milli Seconds
+	
+	@Value("${http.client.socket.timeout}")
+	private long socketTimeout; // In Milli Seconds
+	
+	@Value("${http.client.connection.request.timeout}")
+	private long connectionRequestTimeout; // In Milli Seconds, how long a request waits for a connection of the pool
+	
+	@Value("${http.client.idle.timeout}")
+	private long idleTimeout; // In Milli Seconds
+	
+	@Value("${http.client.socket.buffer.size}")
+	private int socketBufferSize;
+	
+	@Bean(destroyMethod = "close")
+	public PoolingHttpClientConnectionManager httpClientConnectionManager(MeterRegistry meterRegistry) {
+		
+		var handshakeCounter = Counter.builder("http.client.tls.handshakes")
+			.description("TLS handshakes of new pooled connections")
+			.register(meterRegistry);
+		
+		var sslSocketFactory = new SSLConnectionSocketFactory(SSLContexts.createDefault()) {
+			@Override
+			protected void prepareSocket(SSLSocket socket, HttpContext context) throws IOException {
+				super.prepareSocket(socket, context);
+				socket.addHandshakeCompletedListener(event -> handshakeCounter.increment());
+			}
+		};
+		
+		var connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+			.setSSLSocketFactory(sslSocketFactory)
+			.setMaxConnTotal(maxConnections)
+			.setMaxConnPerRoute(maxConnectionsPerRoute)
+			.setDefaultSocketConfig(SocketConfig.custom()
+				.setSoTimeout(Timeout.ofMilliseconds(socketTimeout))
+				.setSoKeepAlive(true)
+				.setTcpNoDelay(true)
+				.setSndBufSize(socketBufferSize)
+				.setRcvBufSize(socketBufferSize)
+				.build())
+			.setDefaultConnectionConfig(ConnectionConfig.custom()
+				.setConnectTimeout(Timeout.ofMilliseconds(connectTimeout))
+				.setSocketTimeout(Timeout.ofMilliseconds(socketTimeout))
+				.setValidateAfterInactivity(TimeValue.ofSeconds(2))
+				.build())
+			.build();
+		
+		new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "drive").bindTo(meterRegistry);
+		
+		return connectionManager;
+		
+	}
+	
+	@Bean(destroyMethod = "close")
+	public CloseableHttpClient httpClient(PoolingHttpClientConnectionManager httpClientConnectionManager) {
+		return HttpClients.custom()
+			.setConnectionManager(httpClientConnectionManager)
+			.setDefaultRequestConfig(RequestConfig.custom()
+				.setConnectionRequestTimeout(Timeout.ofMilliseconds(connectionRequestTimeout))
+				.build())
+			.evictExpiredConnections()
+			.evictIdleConnections(TimeValue.ofMilliseconds(idleTimeout))
+			.build();
+	}
+	
+	@Bean
+	public RestClient restClient(RestClient.Builder restClientBuilder, CloseableHttpClient httpClient) {
+		return restClientBuilder
+			.requestFactory(new HttpComponentsClientHttpRequestFactory(httpClient))
+			.build();
+	}
+	
+}
@@ -0,0 +1,96 @@
+package org.aes.config;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import org.aes.service.TempWorkspaceService;
+import org.aes.service.TempWorkspaceService.Workspace;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+
+/*
+ * Multipart bodies are spooled to java.io.tmpdir while they are parsed, before any controller reserves space for the
+ * files it writes. The body is admitted against the temp disk space budget here on its Content-Length, before it is
+ * parsed, and its reservation is held until the request, including an asynchronous response, is complete. Runs after
+ * the security filters, so unauthenticated requests don't take any space.
+ */
+@RequiredArgsConstructor
+@Component
+public class MultipartAdmissionFilter extends OncePerRequestFilter {
+	
+	private final TempWorkspaceService tempWorkspaceService;
+	
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request) {
+		var contentType = request.getContentType();
+		return contentType == null || !contentType.toLowerCase().startsWith("multipart/");
+	}
+	
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+		throws ServletException, IOException {
+		
+		// A body without a length could spool any amount before its size is known
+		var contentLength = request.getContentLengthLong();
+		if (contentLength < 0) {
+			response.sendError(HttpStatus.LENGTH_REQUIRED.value(), "Multipart requests need a Content-Length");
+			return;
+		}
+		
+		Workspace workspace;
+		try {
+			workspace = tempWorkspaceService.reserve(contentLength);
+		} catch (ResponseStatusException e) {
+			response.sendError(e.getStatusCode().value(), e.getReason());
+			return;
+		}
+		
+		try {
+			filterChain.doFilter(request, response);
+		} finally {
+			if (request.isAsyncStarted()) {
+				request.getAsyncContext().addListener(new ReleasingAsyncListener(workspace));
+			} else {
+				tempWorkspaceService.release(workspace);
+			}
+		}
+		
+	}
+	
+	// Releasing is idempotent, every way an asynchronous request can end releases the reservation
+	@RequiredArgsConstructor
+	private final class ReleasingAsyncListener implements AsyncListener {
+		
+		private final Workspace workspace;
+		
+		@Override
+		public void onComplete(AsyncEvent event) {
+			tempWorkspaceService.release(workspace);
+		}
+		
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			tempWorkspaceService.release(workspace);
+		}
+		
+		@Override
+		public void onError(AsyncEvent event) {
+			tempWorkspaceService.release(workspace);
+		}
+		
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			event.getAsyncContext().addListener(this); // Listeners are dropped when the request goes async again
+		}
+		
+	}
+	
+}
@@ -3,17 +3,25 @@ package org.aes.controller;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import org.aes.dto.DecryptedFileDto;
+import org.aes.dto.EncryptedFileDto;
 import org.aes.model.User;
 import org.aes.service.AesEncryptionDecryptionService;
 import org.aes.service.FileUploadService;
+import org.aes.service.TempWorkspaceService;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.List;
+import java.util.Objects;
 
 @RequiredArgsConstructor
 @RestController
@@ -22,18 +30,48 @@ public class AesEncryptionDecryptionController {
 	
 	private final AesEncryptionDecryptionService aesEncryptionDecryptionService;
 	private final FileUploadService fileUploadService;
+	private final TempWorkspaceService tempWorkspaceService;
+	
+	@Value("${gdrive.upload.pipelined}")
+	private boolean pipelinedUpload;
 	
 	@SneakyThrows
-	@PostMapping(value = "/encrypt", produces = "application/zip")
-	public ResponseEntity<Resource> encrypt(@AuthenticationPrincipal User user,
-	                                        @RequestPart MultipartFile file,
-	                                        @RequestParam int keySize,
-											@RequestParam boolean uploadToDrive,
-	                                        @RequestParam(required = false) List<String> shareToList) {
+	@PostMapping(value = "/encrypt", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public ResponseEntity<?> encrypt(@AuthenticationPrincipal User user,
+	                                 @RequestPart MultipartFile file,
+	                                 @RequestParam int keySize,
+	                                 @RequestParam boolean uploadToDrive,
+	                                 @RequestParam(defaultValue = "false") boolean compress,
+	                                 @RequestParam(required = false) List<String> shareToList) {
+		
+		// Uploading while encrypting, instead of staging the container on disk and uploading it afterwards. Staged when
+		// no upload slot or ring memory is free right away
+		EncryptedFileDto encryptedFile = uploadToDrive && pipelinedUpload
+			? aesEncryptionDecryptionService.encryptToDrive(file, keySize, compress, user.getUsername(), shareToList)
+			: null;
 		
-		Resource fileResource = aesEncryptionDecryptionService.encrypt(file, keySize, uploadToDrive);
+		if (encryptedFile != null) {
+			
+			var response = ResponseEntity.ok();
+			if (encryptedFile.contentLength() >= 0) response.contentLength(encryptedFile.contentLength());
+			
+			return response
+				.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + encryptedFile.fileName())
+				.body(encryptedFile.body());
+			
+		}
 		
-		if (uploadToDrive) fileUploadService.initiateUpload(user.getUsername(), fileResource.getFile(), shareToList);
+		Resource fileResource = aesEncryptionDecryptionService.encrypt(file, keySize, compress, uploadToDrive);
+		
+		if (uploadToDrive) {
+			try {
+				fileUploadService.initiateUpload(user.getUsername(), fileResource.getFile(), shareToList);
+			} catch (Exception e) {
+				// Only a finished upload deletes the container, without one its workspace would never be released
+				tempWorkspaceService.release(fileResource.getFile().toPath());
+				throw e;
+			}
+		}
 		
 		return ResponseEntity.ok()
 			.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + fileResource.getFilename())
@@ -41,15 +79,40 @@ public class AesEncryptionDecryptionController {
 		
 	}
 	
-	@PostMapping("/decrypt")
-	public ResponseEntity<Resource> decrypt(@RequestPart MultipartFile file) {
+	@PostMapping(value = "/encrypt/batch", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public ResponseEntity<Resource> encryptBatch(@RequestPart("files") List<MultipartFile> files,
+	                                             @RequestParam int keySize,
+	                                             @RequestParam(defaultValue = "false") boolean compress) {
 		
-		DecryptedFileDto fileResource = aesEncryptionDecryptionService.decrypt(file);
+		if (files.isEmpty()) throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "No files to encrypt");
+		
+		Resource batchResource = aesEncryptionDecryptionService.encryptBatch(files, keySize, compress);
 		
 		return ResponseEntity.ok()
-			.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + fileResource.resource().getFilename())
-			.header(HttpHeaders.CONTENT_TYPE, fileResource.contentType())
-			.body(fileResource.resource());
+			.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + batchResource.getFilename())
+			.body(batchResource);
+		
+	}
+	
+	@PostMapping("/decrypt")
+	public ResponseEntity<StreamingResponseBody> decrypt(@RequestPart MultipartFile file,
+	                                                     @RequestHeader(value = HttpHeaders.RANGE, required = false) String range) {
+		
+		DecryptedFileDto decryptedFile = aesEncryptionDecryptionService.decrypt(file, range);
+		
+		var response = decryptedFile.contentRange() == null
+			? ResponseEntity.ok()
+			: ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+				.header(HttpHeaders.CONTENT_RANGE, decryptedFile.contentRange());
+		
+		if (decryptedFile.contentLength() >= 0) response.contentLength(decryptedFile.contentLength());
+		
+		return response
+			.header(HttpHeaders.ACCEPT_RANGES, "bytes")
+			.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + decryptedFile.fileName())
+			.header(HttpHeaders.CONTENT_TYPE, Objects.requireNonNullElse(decryptedFile.contentType(),
+				MediaType.APPLICATION_OCTET_STREAM_VALUE))
+			.body(decryptedFile.body());
 		
 	}
 	
@@ -0,0 +1,60 @@
+package org.aes.controller;
+
+import lombok.RequiredArgsConstructor;
+import org.aes.dto.EncryptionJobDto;
+import org.aes.model.User;
+import org.aes.service.EncryptionJobService;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.net.URI;
+import java.util.List;
+
+@RequiredArgsConstructor
+@RestController
+@RequestMapping("/api/v1/jobs")
+public class EncryptionJobController {
+	
+	private final EncryptionJobService encryptionJobService;
+	
+	@PostMapping("/encrypt")
+	public ResponseEntity<EncryptionJobDto> submitEncryption(@AuthenticationPrincipal User user,
+	                                                         @RequestPart MultipartFile file,
+	                                                         @RequestParam int keySize,
+	                                                         @RequestParam(defaultValue = "false") boolean compress) {
+		
+		var job = encryptionJobService.submit(user.getUsername(), file, keySize, compress);
+		
+		return ResponseEntity.accepted()
+			.location(URI.create("/api/v1/jobs/" + job.jobId()))
+			.body(job);
+		
+	}
+	
+	@GetMapping
+	public List<EncryptionJobDto> getJobs(@AuthenticationPrincipal User user) {
+		return encryptionJobService.findAll(user.getUsername());
+	}
+	
+	@GetMapping("/{jobId}")
+	public EncryptionJobDto getJob(@AuthenticationPrincipal User user, @PathVariable String jobId) {
+		return encryptionJobService.find(user.getUsername(), jobId);
+	}
+	
+	@GetMapping(value = "/{jobId}/result", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public ResponseEntity<Resource> getResult(@AuthenticationPrincipal User user, @PathVariable String jobId) {
+		
+		Resource fileResource = encryptionJobService.getResult(user.getUsername(), jobId);
+		
+		return ResponseEntity.ok()
+			.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + fileResource.getFilename())
+			.body(fileResource);
+		
+	}
+	
+}
@@ -1,8 +1,11 @@
 package org.aes.dto;
 
-import org.springframework.core.io.Resource;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 public record DecryptedFileDto(
-	Resource resource,
-	String contentType
+	String fileName,
+	String contentType,
+	long contentLength, // -1 when it isn't known before decrypting
+	String contentRange, // Set when only a byte range of the file is returned
+	StreamingResponseBody body // Decrypts while writing to the response, so nothing is staged on disk
 ) {}
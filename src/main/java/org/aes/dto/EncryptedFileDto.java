@@ -0,0 +1,9 @@
+package org.aes.dto;
+
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+public record EncryptedFileDto(
+	String fileName,
+	long contentLength, // -1 when the file is compressed, its size is only known once it is written
+	StreamingResponseBody body // Encrypts while writing to the response, so nothing is staged on disk
+) {}
@@ -0,0 +1,17 @@
+package org.aes.dto;
+
+import org.aes.model.EncryptionJobStatus;
+
+import java.time.Instant;
+
+public record EncryptionJobDto(
+	String jobId,
+	String fileName,
+	EncryptionJobStatus status,
+	Instant submittedAt,
+	Instant startedAt, // Null while queued
+	Instant finishedAt, // Null until done or failed
+	String error // Null unless failed
+) {
+
+}
@@ -3,6 +3,7 @@ package org.aes.dto;
 import java.util.List;
 
 public record FilePermissionGrantDto(
+	String userId, // Owner of the file, the permissions are granted with their credentials
 	String fileId,
 	List<String> shareToUsersList
 ) {}
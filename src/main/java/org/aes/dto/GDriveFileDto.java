@@ -4,7 +4,10 @@ import java.io.File;
 import java.util.List;
 
 public record GDriveFileDto(
+	String userId, // Owner of the upload, uploads are scheduled fairly between users
 	File file,
 	String resumableUrl,
-	List<String> shareToUsersList // Will contain the list of emails to share this file with
+	List<String> shareToUsersList, // Will contain the list of emails to share this file with
+	String uploadSessionId, // Id of the UploadSession row checkpointing this upload
+	long committedOffset // Bytes already acknowledged by Drive, the upload starts from here
 ) {}
@@ -3,7 +3,7 @@ package org.aes.eventlistner;
 import lombok.RequiredArgsConstructor;
 import org.aes.dto.GDriveFileDto;
 import org.aes.event.FileUploadEvent;
-import org.aes.service.FileUploadService;
+import org.aes.service.UploadScheduler;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
@@ -11,11 +11,11 @@ import org.springframework.stereotype.Component;
 @Component
 public class FileUploadEventListener {
 	
-	private final FileUploadService fileUploadService;
+	private final UploadScheduler uploadScheduler;
 	
 	@EventListener
 	public void onFileUploadEvent(FileUploadEvent fileUploadEvent) {
-		fileUploadService.uploadFileChunks((GDriveFileDto) fileUploadEvent.getSource());
+		uploadScheduler.submit((GDriveFileDto) fileUploadEvent.getSource());
 	}
 	
 }
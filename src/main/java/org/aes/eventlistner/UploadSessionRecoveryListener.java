@@ -0,0 +1,20 @@
+package org.aes.eventlistner;
+
+import lombok.RequiredArgsConstructor;
+import org.aes.service.FileUploadService;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+@RequiredArgsConstructor
+@Component
+public class UploadSessionRecoveryListener {
+	
+	private final FileUploadService fileUploadService;
+	
+	@EventListener(ApplicationReadyEvent.class)
+	public void onApplicationReady() {
+		fileUploadService.resumeUploadSessions();
+	}
+	
+}
@@ -0,0 +1,62 @@
+package org.aes.helper;
+
+/*
+ * Picks the size of the next resumable upload chunk from the measured throughput and error rate of the previous ones.
+ * Chunks aim to take about targetChunkMillis, so fast links send fewer and bigger requests, and every failure halves
+ * the size, so flaky links lose less on each retry. Sizes are multiples of 256 KB as Drive requires for every chunk
+ * except the last one. One instance per upload, it isn't thread safe.
+ */
+public class AdaptiveChunkSizer {
+	
+	public static final int CHUNK_GRANULARITY = 256 * 1024;
+	private static final double SMOOTHING = 0.3; // Weight of the latest sample in the moving averages
+	private static final int MAX_GROWTH = 2; // The size at most doubles from one chunk to the next
+	
+	private final int minChunkSize;
+	private final int maxChunkSize;
+	private final long targetChunkNanos;
+	private int chunkSize;
+	private double throughput; // Bytes per nano second, 0 until the first chunk is measured
+	private double errorRate;
+	
+	public AdaptiveChunkSizer(int initialChunkSize, int maxChunkSize, long targetChunkMillis) {
+		this.minChunkSize = CHUNK_GRANULARITY;
+		this.maxChunkSize = roundDown(maxChunkSize);
+		this.targetChunkNanos = targetChunkMillis * 1_000_000;
+		this.chunkSize = clamp(roundDown(initialChunkSize));
+	}
+	
+	public int chunkSize() {
+		return chunkSize;
+	}
+	
+	public void onSuccess(long bytes, long elapsedNanos) {
+		
+		if (bytes <= 0 || elapsedNanos <= 0) return;
+		
+		var sample = (double) bytes / elapsedNanos;
+		throughput = throughput == 0 ? sample : SMOOTHING * sample + (1 - SMOOTHING) * throughput;
+		errorRate = (1 - SMOOTHING) * errorRate;
+		
+		// The bytes that fit in the target duration, scaled down while errors are still recent
+		var target = (long) (throughput * targetChunkNanos * (1 - errorRate));
+		target = Math.min(target, (long) chunkSize * MAX_GROWTH);
+		
+		chunkSize = clamp(roundDown(target));
+		
+	}
+	
+	public void onFailure() {
+		errorRate = SMOOTHING + (1 - SMOOTHING) * errorRate;
+		chunkSize = clamp(roundDown(chunkSize / 2));
+	}
+	
+	private int clamp(long size) {
+		return (int) Math.max(minChunkSize, Math.min(maxChunkSize, size));
+	}
+	
+	private static int roundDown(long size) {
+		return (int) (Math.min(size, Integer.MAX_VALUE) / CHUNK_GRANULARITY * CHUNK_GRANULARITY);
+	}
+	
+}
@@ -0,0 +1,195 @@
+package org.aes.helper;
+
+import lombok.SneakyThrows;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Channel based I/O shared by the encrypt, zip and upload stages. Bytes are moved between channels with
+ * transferTo or direct buffers, so they aren't copied through heap arrays on the way.
+ */
+public class ChannelIO {
+	
+	private ChannelIO() {
+	
+	}
+	
+	public static ByteBuffer allocate(int capacity) {
+		return ByteBuffer.allocateDirect(capacity);
+	}
+	
+	public static ReadableByteChannel newChannel(InputStream in) {
+		// Multipart uploads spooled to disk come as a FileInputStream, its FileChannel reads without the stream's copy
+		return in instanceof FileInputStream fis ? fis.getChannel() : Channels.newChannel(in);
+	}
+	
+	// Ends the channel after limit bytes, e.g. to stop reading ciphertext where a trailer begins
+	public static ReadableByteChannel limit(ReadableByteChannel channel, long limit) {
+		return new ReadableByteChannel() {
+			
+			private long remaining = limit;
+			
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				
+				if (remaining <= 0) return -1;
+				
+				var window = dst.slice(dst.position(), (int) Math.min(dst.remaining(), remaining));
+				int read = channel.read(window);
+				
+				if (read > 0) {
+					dst.position(dst.position() + read);
+					remaining -= read;
+				}
+				
+				return read;
+				
+			}
+			
+			@Override
+			public boolean isOpen() {
+				return channel.isOpen();
+			}
+			
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+			
+		};
+	}
+	
+	// Drops the first skip bytes written to it and everything after the following length bytes
+	public static WritableByteChannel slice(WritableByteChannel channel, long skip, long length) {
+		return new WritableByteChannel() {
+			
+			private long toSkip = skip;
+			private long remaining = length;
+			
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				
+				int written = src.remaining();
+				
+				var skipped = (int) Math.min(toSkip, src.remaining());
+				src.position(src.position() + skipped);
+				toSkip -= skipped;
+				
+				var window = src.slice(src.position(), (int) Math.min(src.remaining(), remaining));
+				writeFully(channel, window);
+				remaining -= window.limit();
+				src.position(src.limit());
+				
+				return written;
+				
+			}
+			
+			@Override
+			public boolean isOpen() {
+				return channel.isOpen();
+			}
+			
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+			
+		};
+	}
+	
+	// Writes everything to both channels, e.g. a container to the response and to its Drive upload. Once writing to the
+	// first channel fails it is dropped and the rest only goes to the second, a client that stops downloading doesn't
+	// cut the upload short. Failures of the second channel are thrown.
+	public static WritableByteChannel tee(WritableByteChannel first, WritableByteChannel second) {
+		return new WritableByteChannel() {
+			
+			private boolean firstFailed;
+			
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				
+				int written = src.remaining();
+				writeFully(second, src.duplicate());
+				
+				if (!firstFailed) {
+					try {
+						writeFully(first, src);
+					} catch (IOException e) {
+						firstFailed = true;
+					}
+				}
+				
+				src.position(src.limit());
+				return written;
+				
+			}
+			
+			@Override
+			public boolean isOpen() {
+				return second.isOpen();
+			}
+			
+			@Override
+			public void close() throws IOException {
+				try (second) {
+					if (!firstFailed) first.close();
+				}
+			}
+			
+		};
+	}
+	
+	public static int readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		
+		int bytesRead = 0;
+		
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer);
+			if (read < 0) break;
+			bytesRead += read;
+		}
+		
+		return bytesRead;
+		
+	}
+	
+	public static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+	
+	public static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+	
+	@SneakyThrows
+	public static long transferTo(Path source, WritableByteChannel target) {
+		
+		try (var channel = FileChannel.open(source, StandardOpenOption.READ)) {
+			
+			long size = channel.size();
+			long position = 0;
+			
+			while (position < size) {
+				position += channel.transferTo(position, size - position, target);
+			}
+			
+			return size;
+			
+		}
+		
+	}
+	
+}
@@ -0,0 +1,157 @@
+package org.aes.helper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+ * Bounded ring of chunk buffers between a producer writing a stream and a consumer sending it on in chunks, e.g. a
+ * container while it is encrypted and its Drive upload. The producer writes through the channel side, every full chunk
+ * is handed to the consumer, and once all buffers are taken the producer blocks until the consumer releases one, so a
+ * slow consumer throttles the producer. A chunk stays with the consumer until it is released, so unacknowledged bytes
+ * can be sent again. Memory is bounded by chunkSize * maxChunks whatever the stream length is.
+ */
+public class ChunkRing implements WritableByteChannel {
+	
+	// Handed to the consumer instead of a chunk when the producer failed
+	private static final Chunk FAILED = new Chunk(-1, null, true);
+	
+	private final int chunkSize;
+	private final int maxChunks;
+	private final BlockingQueue<ByteBuffer> freeBuffers;
+	private final BlockingQueue<Chunk> filledChunks = new LinkedBlockingQueue<>();
+	private int allocatedBuffers; // Producer side only
+	private ByteBuffer current;
+	private long offset; // Stream offset of the current chunk
+	private boolean open = true;
+	private volatile boolean aborted;
+	private volatile Throwable failure;
+	
+	public record Chunk(long offset, ByteBuffer buffer, boolean last) {
+		
+		public long end() {
+			return offset + buffer.limit();
+		}
+		
+	}
+	
+	public ChunkRing(int chunkSize, int maxChunks) {
+		this.chunkSize = chunkSize;
+		this.maxChunks = maxChunks;
+		// One extra slot for the buffer abort() wakes a blocked producer with
+		this.freeBuffers = new ArrayBlockingQueue<>(maxChunks + 1);
+	}
+	
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		
+		if (!open) throw new ClosedChannelException();
+		
+		var length = src.remaining();
+		
+		while (src.hasRemaining() && !aborted) {
+			
+			if (current == null && (current = nextFreeBuffer()) == null) break;
+			
+			var count = Math.min(current.remaining(), src.remaining());
+			current.put(src.slice(src.position(), count));
+			src.position(src.position() + count);
+			
+			if (!current.hasRemaining()) publish(false);
+			
+		}
+		
+		// Once the consumer gave up the rest of the stream is dropped, the producer may still be writing it elsewhere
+		src.position(src.limit());
+		return length;
+		
+	}
+	
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+	
+	// Hands the last chunk, possibly empty, to the consumer
+	@Override
+	public void close() {
+		
+		if (!open) return;
+		open = false;
+		
+		if (aborted) return;
+		if (current == null) current = ByteBuffer.allocate(0);
+		
+		publish(true);
+		
+	}
+	
+	// The producer couldn't finish the stream, the consumer's next take() throws
+	public void fail(Throwable cause) {
+		open = false;
+		failure = cause;
+		filledChunks.add(FAILED);
+	}
+	
+	// Next chunk in stream order, blocks until the producer has filled it
+	public Chunk take() throws IOException {
+		
+		Chunk chunk;
+		try {
+			chunk = filledChunks.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the next chunk");
+		}
+		
+		if (chunk == FAILED) throw new IOException("The stream wasn't written to the end", failure);
+		
+		return chunk;
+		
+	}
+	
+	// Gives the chunk's buffer back to the producer
+	public void release(Chunk chunk) {
+		freeBuffers.offer(chunk.buffer().clear());
+	}
+	
+	// The consumer gave up. A blocked producer is woken up and from now on its writes are dropped
+	public void abort() {
+		aborted = true;
+		filledChunks.clear();
+		freeBuffers.offer(ByteBuffer.allocate(0));
+	}
+	
+	private ByteBuffer nextFreeBuffer() throws InterruptedIOException {
+		
+		var buffer = freeBuffers.poll();
+		
+		if (buffer == null && allocatedBuffers < maxChunks) {
+			allocatedBuffers++;
+			return ChannelIO.allocate(chunkSize);
+		}
+		
+		try {
+			if (buffer == null) buffer = freeBuffers.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a free chunk");
+		}
+		
+		return aborted ? null : buffer;
+		
+	}
+	
+	private void publish(boolean last) {
+		current.flip();
+		filledChunks.add(new Chunk(offset, current, last));
+		offset += current.limit();
+		current = null;
+	}
+	
+}
@@ -0,0 +1,48 @@
+package org.aes.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Decides whether plaintext is compressed before it is encrypted, ciphertext doesn't compress so it has to happen
+ * first. The first block is sampled and only compressed when its byte entropy is low enough. Text, logs and CSV sit
+ * around 4 to 6 bits per byte, media, archives and other already compressed formats close to 8 and are left as is.
+ */
+public class Compression {
+	
+	public static final int SAMPLE_SIZE = 64 * 1024;
+	
+	private Compression() {
+	
+	}
+	
+	// Reads the first SAMPLE_SIZE bytes without consuming them, in has to support mark
+	public static byte[] sample(InputStream in) throws IOException {
+		in.mark(SAMPLE_SIZE);
+		var sample = in.readNBytes(SAMPLE_SIZE);
+		in.reset();
+		return sample;
+	}
+	
+	public static boolean isCompressible(byte[] sample, double maxEntropy) {
+		return sample.length > 0 && entropy(sample) <= maxEntropy;
+	}
+	
+	// Shannon entropy of the byte values, in bits per byte
+	public static double entropy(byte[] sample) {
+		
+		var counts = new int[256];
+		for (var b : sample) counts[b & 0xFF]++;
+		
+		var entropy = 0.0;
+		for (var count : counts) {
+			if (count == 0) continue;
+			var p = (double) count / sample.length;
+			entropy -= p * Math.log(p);
+		}
+		
+		return entropy / Math.log(2);
+		
+	}
+	
+}
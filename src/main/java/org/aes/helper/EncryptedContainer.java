@@ -0,0 +1,246 @@
+package org.aes.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/*
+ * Binary layout of an encrypted file (all numbers big-endian):
+ *
+ * header:  magic "AESC"(4) | version(1) | algorithm(1) | flags(1) | tagLength in bytes(1) | segmentSize(4)
+ *          | noncePrefix(7) | keyIdLength(1) | keyId | [version 2: kekAliasLength(1) | kekAlias | wrappedKeyLength(2)
+ *          | wrappedKey] | fileNameLength(2) | fileName
+ * body:    StreamingAesGcm segments, every segment authenticates the whole header as associated data
+ * footer:  plaintextSize(8) | segmentCount(4) | magic "AESX"(4), present when FLAG_INDEX_FOOTER is set
+ *
+ * With FLAG_COMPRESSED the segments hold the zlib DEFLATE stream of the file instead of the file itself, the sizes in
+ * the footer are then the ones of the compressed stream.
+ * Version 1 files only carry the id of their AesEncryptionMetaInfo row, which holds the data key. Version 2 files carry
+ * the data key wrapped with the key-encryption key under kekAlias, the row is then only kept for audit.
+ */
+public class EncryptedContainer {
+	
+	public static final String FILE_EXTENSION = ".aes";
+	public static final int SIGNATURE_LENGTH = 4;
+	public static final int FOOTER_LENGTH = 16;
+	public static final int FLAG_INDEX_FOOTER = 1;
+	public static final int FLAG_COMPRESSED = 2;
+	private static final byte[] MAGIC = {'A', 'E', 'S', 'C'};
+	private static final byte[] FOOTER_MAGIC = {'A', 'E', 'S', 'X'};
+	private static final int VERSION_KEY_ID = 1;
+	private static final int VERSION_WRAPPED_KEY = 2;
+	private static final int ALGORITHM_AES_GCM_SEGMENTED = 1;
+	private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+	
+	private EncryptedContainer() {
+	
+	}
+	
+	public record Header(
+		int version,
+		int flags,
+		int tagLength, // In bits, as GCMParameterSpec takes it
+		int segmentSize,
+		byte[] noncePrefix,
+		String keyId,
+		String kekAlias, // Null in version 1
+		byte[] wrappedKey, // Null in version 1
+		String fileName,
+		byte[] encoded // The header exactly as written, used as associated data of every segment
+	) {
+		
+		public int length() {
+			return encoded.length;
+		}
+		
+		public boolean hasIndexFooter() {
+			return (flags & FLAG_INDEX_FOOTER) != 0;
+		}
+		
+		public boolean isCompressed() {
+			return (flags & FLAG_COMPRESSED) != 0;
+		}
+		
+		public boolean hasWrappedKey() {
+			return wrappedKey != null;
+		}
+		
+	}
+	
+	public static boolean isContainer(byte[] signature) {
+		return Arrays.equals(signature, MAGIC);
+	}
+	
+	public static Header newHeader(String keyId, String kekAlias, byte[] wrappedKey, byte[] noncePrefix,
+	                               int segmentSize, int tagLength, String fileName, boolean compressed) {
+		
+		var keyIdBytes = keyId.getBytes(StandardCharsets.UTF_8);
+		var kekAliasBytes = kekAlias.getBytes(StandardCharsets.UTF_8);
+		var fileNameBytes = fileName.getBytes(StandardCharsets.UTF_8);
+		var flags = FLAG_INDEX_FOOTER | (compressed ? FLAG_COMPRESSED : 0);
+		
+		if (keyIdBytes.length > 0xFF || kekAliasBytes.length > 0xFF || wrappedKey.length > 0xFFFF
+			|| fileNameBytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("Key id, key alias or file name is too long for the container header");
+		}
+		
+		var encoded = ByteBuffer.allocate(25 + keyIdBytes.length + kekAliasBytes.length + wrappedKey.length
+				+ fileNameBytes.length)
+			.put(MAGIC)
+			.put((byte) VERSION_WRAPPED_KEY)
+			.put((byte) ALGORITHM_AES_GCM_SEGMENTED)
+			.put((byte) flags)
+			.put((byte) (tagLength / 8))
+			.putInt(segmentSize)
+			.put(noncePrefix, 0, StreamingAesGcm.NONCE_PREFIX_LENGTH)
+			.put((byte) keyIdBytes.length)
+			.put(keyIdBytes)
+			.put((byte) kekAliasBytes.length)
+			.put(kekAliasBytes)
+			.putShort((short) wrappedKey.length)
+			.put(wrappedKey)
+			.putShort((short) fileNameBytes.length)
+			.put(fileNameBytes)
+			.array();
+		
+		return new Header(VERSION_WRAPPED_KEY, flags, tagLength, segmentSize, noncePrefix, keyId, kekAlias, wrappedKey,
+			fileName, encoded);
+		
+	}
+	
+	// Reads exactly the header bytes, so the stream is left positioned at the first segment
+	public static Header readHeader(InputStream in) throws IOException {
+		
+		var encoded = new ByteArrayOutputStream();
+		var data = new DataInputStream(new TeeInputStream(in, encoded));
+		
+		if (!isContainer(data.readNBytes(SIGNATURE_LENGTH))) throw new IOException("Not an encrypted container");
+		
+		var version = data.readUnsignedByte();
+		var algorithm = data.readUnsignedByte();
+		if ((version != VERSION_KEY_ID && version != VERSION_WRAPPED_KEY) || algorithm != ALGORITHM_AES_GCM_SEGMENTED) {
+			throw new IOException("Unsupported container version " + version + " or algorithm " + algorithm);
+		}
+		
+		var flags = data.readUnsignedByte();
+		var tagLength = data.readUnsignedByte() * 8;
+		var segmentSize = data.readInt();
+		if (tagLength < 96 || tagLength > 128 || segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+			throw new IOException("Invalid container parameters");
+		}
+		
+		var noncePrefix = new byte[StreamingAesGcm.NONCE_PREFIX_LENGTH];
+		data.readFully(noncePrefix);
+		
+		var keyId = new byte[data.readUnsignedByte()];
+		data.readFully(keyId);
+		
+		String kekAlias = null;
+		byte[] wrappedKey = null;
+		if (version == VERSION_WRAPPED_KEY) {
+			var kekAliasBytes = new byte[data.readUnsignedByte()];
+			data.readFully(kekAliasBytes);
+			kekAlias = new String(kekAliasBytes, StandardCharsets.UTF_8);
+			wrappedKey = new byte[data.readUnsignedShort()];
+			data.readFully(wrappedKey);
+		}
+		
+		var fileName = new byte[data.readUnsignedShort()];
+		data.readFully(fileName);
+		
+		// Only the name is taken, a crafted header can't point anywhere else on the file system
+		var safeFileName = Path.of(new String(fileName, StandardCharsets.UTF_8)).getFileName().toString();
+		
+		return new Header(version, flags, tagLength, segmentSize, noncePrefix,
+			new String(keyId, StandardCharsets.UTF_8), kekAlias, wrappedKey, safeFileName, encoded.toByteArray());
+		
+	}
+	
+	public static ByteBuffer footer(long ciphertextSize, int segmentSize, int tagLength) {
+		
+		var ciphertextSegmentSize = StreamingAesGcm.ciphertextSegmentSize(segmentSize, tagLength);
+		var segmentCount = Math.max(1, (ciphertextSize + ciphertextSegmentSize - 1) / ciphertextSegmentSize);
+		
+		return ByteBuffer.allocate(FOOTER_LENGTH)
+			.putLong(ciphertextSize - segmentCount * (tagLength / 8))
+			.putInt((int) segmentCount)
+			.put(FOOTER_MAGIC)
+			.flip();
+		
+	}
+	
+	public static long ciphertextLength(Header header, long containerSize) {
+		return containerSize - header.length() - (header.hasIndexFooter() ? FOOTER_LENGTH : 0);
+	}
+	
+	public static long segmentCount(Header header, long containerSize) {
+		var ciphertextSegmentSize = StreamingAesGcm.ciphertextSegmentSize(header.segmentSize(), header.tagLength());
+		return Math.max(1, (ciphertextLength(header, containerSize) + ciphertextSegmentSize - 1) / ciphertextSegmentSize);
+	}
+	
+	public static long plaintextSize(Header header, long containerSize) {
+		return ciphertextLength(header, containerSize) - segmentCount(header, containerSize) * (header.tagLength() / 8);
+	}
+	
+	// The run of segments holding the plaintext bytes rangeStart to rangeEnd (inclusive) of an uncompressed file
+	public static SegmentRange segmentRange(Header header, long containerSize, long rangeStart, long rangeEnd) {
+		
+		var segmentSize = header.segmentSize();
+		var ciphertextSegmentSize = StreamingAesGcm.ciphertextSegmentSize(segmentSize, header.tagLength());
+		var firstSegment = rangeStart / segmentSize;
+		var lastSegment = rangeEnd / segmentSize;
+		var ciphertextOffset = firstSegment * ciphertextSegmentSize;
+		
+		return new SegmentRange(
+			firstSegment,
+			lastSegment == segmentCount(header, containerSize) - 1,
+			ciphertextOffset,
+			Math.min((lastSegment - firstSegment + 1) * ciphertextSegmentSize,
+				ciphertextLength(header, containerSize) - ciphertextOffset),
+			rangeStart - firstSegment * segmentSize);
+		
+	}
+	
+	public record SegmentRange(
+		long firstSegment,
+		boolean includesFinalSegment, // Its last segment has to be opened as the last one of the file
+		long ciphertextOffset, // From the first segment of the body
+		long ciphertextLength,
+		long skip // Plaintext bytes of the first segment before the range
+	) {
+	
+	}
+	
+	// Copies every byte read through it, so the header can be authenticated exactly as it was written
+	private static final class TeeInputStream extends InputStream {
+		
+		private final InputStream in;
+		private final ByteArrayOutputStream copy;
+		
+		private TeeInputStream(InputStream in, ByteArrayOutputStream copy) {
+			this.in = in;
+			this.copy = copy;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) copy.write(b);
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			if (read > 0) copy.write(b, off, read);
+			return read;
+		}
+		
+	}
+	
+}
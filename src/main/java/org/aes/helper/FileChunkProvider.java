@@ -2,36 +2,59 @@ package org.aes.helper;
 
 import lombok.SneakyThrows;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
-public class FileChunkProvider {
-
-	private FileChunkProvider() {
+/*
+ * Reads upload chunks lazily from a FileChannel into one reused direct buffer, so an upload holds a single chunk in
+ * memory whatever the file size is. The buffer only grows when a bigger chunk is asked for. Any range can be read
+ * again from its file offset, e.g. the unacknowledged bytes after a 308, a chunk is only valid until the next read.
+ */
+public class FileChunkProvider implements Closeable {
+	
+	private final FileChannel channel;
+	private ByteBuffer buffer;
+	private final long size;
+	
+	private FileChunkProvider(FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.buffer = ChannelIO.allocate(0);
+		this.size = channel.size();
+	}
+	
+	@SneakyThrows
+	public static FileChunkProvider open(File file) {
+		return new FileChunkProvider(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+	}
 	
+	public long size() {
+		return size;
 	}
 	
+	// Up to length bytes from offset, read only when asked for
 	@SneakyThrows
-	public static List<ByteBuffer> getChunks(File file, int chunkSize) {
+	public ByteBuffer read(long offset, int length) {
+		
+		var chunkLength = (int) Math.min(length, size - offset);
+		if (buffer.capacity() < chunkLength) buffer = ChannelIO.allocate(chunkLength);
 		
-		var chunks = new ArrayList<ByteBuffer>();
-		var buffer = new byte[chunkSize * 1024];
-		int bytesRead;
+		buffer.clear().limit(chunkLength);
 		
-		try (var fis = new FileInputStream(file)) {
-			while ((bytesRead = fis.read(buffer)) != -1) {
-				var byteBuffer = ByteBuffer.allocate(bytesRead);
-				byteBuffer.put(buffer, 0, bytesRead);
-				byteBuffer.flip(); // Prepare the buffer for reading
-				chunks.add(byteBuffer);
-			}
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) break;
 		}
 		
-		return chunks;
+		return buffer.flip().asReadOnlyBuffer();
 		
 	}
 	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+	
 }
@@ -0,0 +1,31 @@
+package org.aes.helper;
+
+import org.apache.commons.lang3.RandomStringUtils;
+
+/*
+ * Names of the files the application writes, a random suffix keeps files of the same name from different requests
+ * apart.
+ */
+public class FileNames {
+	
+	private FileNames() {
+	
+	}
+	
+	public static String generateUniqueFileName(String fileName) {
+		var fileNameWithoutExtension = getFilePathWithoutExtension(fileName);
+		var randomAlphaNumericString = RandomStringUtils.randomAlphanumeric(9);
+		return fileNameWithoutExtension + "-" + randomAlphaNumericString + getFileExtension(fileName);
+	}
+	
+	public static String getFilePathWithoutExtension(String fileName) {
+		var extensionIndex = fileName.lastIndexOf(".");
+		return extensionIndex < 0 ? fileName : fileName.substring(0, extensionIndex);
+	}
+	
+	private static String getFileExtension(String fileName) {
+		var extensionIndex = fileName.lastIndexOf(".");
+		return extensionIndex < 0 ? "" : fileName.substring(extensionIndex);
+	}
+	
+}
@@ -1,18 +1,25 @@
 package org.aes.helper;
 
+import lombok.RequiredArgsConstructor;
 import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestClient;
 
+import java.net.URI;
+
+@RequiredArgsConstructor
+@Component
 public class InternetConnectivityChecker {
 	
-	private InternetConnectivityChecker() {
+	private static final URI DRIVE_API_URI = URI.create("https://www.googleapis.com/drive/v3");
 	
-	}
+	private final RestClient restClient;
 	
-	public static boolean isDriveApiNonAccessible() {
+	public boolean isDriveApiNonAccessible() {
 		try {
-			// Attempt to connect to Google Drive API
-			RestClient.create("https://www.googleapis.com/drive/v3").method(HttpMethod.GET).retrieve();
+			// Attempt to connect to Google Drive API, any response (even a 404) means it is reachable. Goes through the
+			// pooled client, so the probe usually reuses an open connection
+			restClient.method(HttpMethod.GET).uri(DRIVE_API_URI).exchange((request, response) -> true);
 			return false;
 		} catch (Exception e) {
 			// Connection attempt failed, Bad Internet Connection
@@ -0,0 +1,110 @@
+package org.aes.helper;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.google.api.client.util.store.AbstractDataStore;
+import com.google.api.client.util.store.AbstractDataStoreFactory;
+import com.google.api.client.util.store.DataStore;
+import org.apache.commons.lang3.SerializationUtils;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.Serializable;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+
+/*
+ * Google client DataStores kept in the oauth_credential table instead of files, so every node of a deployment sees
+ * the same credentials. Reads go through a small in-memory cache, entries live for cacheTtl, so a token refreshed and
+ * saved by another node is picked up within that time. Writes go to the database first and then to the cache.
+ */
+public class JdbcDataStoreFactory extends AbstractDataStoreFactory {
+	
+	private static final String SELECT_SQL = "SELECT value FROM oauth_credential WHERE store_id = ? AND user_id = ?";
+	private static final String SELECT_KEYS_SQL = "SELECT user_id FROM oauth_credential WHERE store_id = ?";
+	private static final String SELECT_VALUES_SQL = "SELECT value FROM oauth_credential WHERE store_id = ?";
+	private static final String UPSERT_SQL = """
+		INSERT INTO oauth_credential (store_id, user_id, value, updated_at) VALUES (?, ?, ?, now())
+		ON CONFLICT (store_id, user_id) DO UPDATE SET value = EXCLUDED.value, updated_at = EXCLUDED.updated_at""";
+	private static final String DELETE_SQL = "DELETE FROM oauth_credential WHERE store_id = ? AND user_id = ?";
+	private static final String DELETE_ALL_SQL = "DELETE FROM oauth_credential WHERE store_id = ?";
+	
+	private final JdbcTemplate jdbcTemplate;
+	private final Duration cacheTtl;
+	
+	public JdbcDataStoreFactory(JdbcTemplate jdbcTemplate, Duration cacheTtl) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.cacheTtl = cacheTtl;
+	}
+	
+	@Override
+	protected <V extends Serializable> DataStore<V> createDataStore(String id) {
+		return new JdbcDataStore<>(this, id);
+	}
+	
+	private static final class JdbcDataStore<V extends Serializable> extends AbstractDataStore<V> {
+		
+		private final JdbcTemplate jdbcTemplate;
+		// Missing keys are cached as empty, users who never authorized Drive don't cost a query every time
+		private final LoadingCache<String, Optional<V>> cache;
+		
+		private JdbcDataStore(JdbcDataStoreFactory dataStoreFactory, String id) {
+			super(dataStoreFactory, id);
+			this.jdbcTemplate = dataStoreFactory.jdbcTemplate;
+			this.cache = Caffeine.newBuilder()
+				.expireAfterWrite(dataStoreFactory.cacheTtl)
+				.build(this::load);
+		}
+		
+		@Override
+		public Set<String> keySet() {
+			return new HashSet<>(jdbcTemplate.queryForList(SELECT_KEYS_SQL, String.class, getId()));
+		}
+		
+		@Override
+		public Collection<V> values() {
+			return jdbcTemplate.query(SELECT_VALUES_SQL, this::deserialize, getId());
+		}
+		
+		@Override
+		public V get(String key) {
+			return key == null ? null : cache.get(key).orElse(null);
+		}
+		
+		@Override
+		public DataStore<V> set(String key, V value) {
+			jdbcTemplate.update(UPSERT_SQL, getId(), key, SerializationUtils.serialize(value));
+			cache.put(key, Optional.of(value));
+			return this;
+		}
+		
+		@Override
+		public DataStore<V> clear() {
+			jdbcTemplate.update(DELETE_ALL_SQL, getId());
+			cache.invalidateAll();
+			return this;
+		}
+		
+		@Override
+		public DataStore<V> delete(String key) {
+			if (key == null) return this;
+			jdbcTemplate.update(DELETE_SQL, getId(), key);
+			cache.put(key, Optional.empty());
+			return this;
+		}
+		
+		private Optional<V> load(String key) {
+			return jdbcTemplate.query(SELECT_SQL, this::deserialize, getId(), key).stream().findFirst();
+		}
+		
+		private V deserialize(ResultSet resultSet, int rowNum) throws SQLException {
+			return SerializationUtils.deserialize(resultSet.getBytes(1));
+		}
+		
+	}
+	
+}
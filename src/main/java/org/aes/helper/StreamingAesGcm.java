@@ -0,0 +1,84 @@
+package org.aes.helper;
+
+import lombok.SneakyThrows;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/*
+ * Segmented AES-GCM (STREAM construction). The plaintext is split into fixed size segments and every segment is
+ * sealed on its own with the nonce: noncePrefix(7) || segmentIndex(4) || lastSegmentFlag(1).
+ * The index stops segments from being reordered and the flag stops the ciphertext from being truncated.
+ */
+public class StreamingAesGcm {
+	
+	public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	public static final int NONCE_LENGTH = 12;
+	public static final int NONCE_PREFIX_LENGTH = 7;
+	public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024; // 1 MB of plaintext per segment
+	
+	private StreamingAesGcm() {
+	
+	}
+	
+	@SneakyThrows
+	public static Cipher newCipher() {
+		return Cipher.getInstance(TRANSFORMATION);
+	}
+	
+	public static byte[] generateNoncePrefix() {
+		var noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+		new SecureRandom().nextBytes(noncePrefix);
+		return noncePrefix;
+	}
+	
+	public static byte[] segmentNonce(byte[] noncePrefix, long segmentIndex, boolean lastSegment) {
+		
+		if (segmentIndex < 0 || segmentIndex > 0xFFFFFFFFL) {
+			throw new IllegalArgumentException("Segment index out of range: " + segmentIndex);
+		}
+		
+		return ByteBuffer.allocate(NONCE_LENGTH)
+			.put(noncePrefix, 0, NONCE_PREFIX_LENGTH)
+			.putInt((int) segmentIndex)
+			.put((byte) (lastSegment ? 1 : 0))
+			.array();
+		
+	}
+	
+	public static int ciphertextSegmentSize(int segmentSize, int tagLength) {
+		return segmentSize + tagLength / 8;
+	}
+	
+	public static long ciphertextSize(long plaintextSize, int segmentSize, int tagLength) {
+		// An empty file is still one (empty) sealed segment
+		long segments = plaintextSize == 0 ? 1 : (plaintextSize + segmentSize - 1) / segmentSize;
+		return plaintextSize + segments * (tagLength / 8);
+	}
+	
+	public static int sealSegment(Cipher cipher, SecretKey key, byte[] noncePrefix, int tagLength, byte[] associatedData,
+	                              long segmentIndex, boolean lastSegment,
+	                              ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+		cipher.init(Cipher.ENCRYPT_MODE, key,
+			new GCMParameterSpec(tagLength, segmentNonce(noncePrefix, segmentIndex, lastSegment)));
+		if (associatedData != null) cipher.updateAAD(associatedData);
+		return cipher.doFinal(input, output);
+	}
+	
+	public static int openSegment(Cipher cipher, SecretKey key, byte[] noncePrefix, int tagLength, byte[] associatedData,
+	                              long segmentIndex, boolean lastSegment,
+	                              ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+		// A segment shorter than its tag can't be authenticated, doFinal fails on it with an ArithmeticException
+		if (input.remaining() < tagLength / 8) throw new AEADBadTagException("Segment is shorter than its tag");
+		cipher.init(Cipher.DECRYPT_MODE, key,
+			new GCMParameterSpec(tagLength, segmentNonce(noncePrefix, segmentIndex, lastSegment)));
+		if (associatedData != null) cipher.updateAAD(associatedData);
+		return cipher.doFinal(input, output);
+	}
+	
+}
@@ -1,8 +1,6 @@
 package org.aes.helper;
 
-import lombok.SneakyThrows;
-
-import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class TimeCalculator {
 	
@@ -10,12 +8,11 @@ public class TimeCalculator {
 	
 	}
 	
-	@SneakyThrows
-	public static long calculateRetryDelay(int retryIndex) {
-		long exponentialDelay = (long) Math.pow(2, retryIndex);
-		// Adding random ms to waitTillRetryAttempt so there are no retry attempts at exact same time
-		long randomDelay = SecureRandom.getInstanceStrong().nextInt(1001);
-		return exponentialDelay + randomDelay;
+	// Decorrelated jitter backoff: the next delay is random between baseDelay and three times the previous delay, capped
+	// at maxDelay. Retries of different uploads spread out instead of hitting the server at the same moments.
+	public static long calculateRetryDelay(long baseDelay, long maxDelay, long previousDelay) {
+		var upperBound = Math.min(maxDelay, Math.max(baseDelay, previousDelay) * 3);
+		return ThreadLocalRandom.current().nextLong(baseDelay, Math.max(baseDelay, upperBound) + 1);
 	}
 	
 }
@@ -32,4 +32,7 @@ public class AesEncryptionMetaInfo {
 	@Column(name = "tag_length")
 	private int tagLength;
 	
+	@Column(name = "segment_size")
+	private Integer segmentSize; // Plaintext bytes per GCM segment, null for files encrypted in a single GCM pass
+	
 }
@@ -0,0 +1,8 @@
+package org.aes.model;
+
+public enum EncryptionJobStatus {
+	QUEUED,
+	RUNNING,
+	DONE,
+	FAILED
+}
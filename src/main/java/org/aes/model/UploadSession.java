@@ -0,0 +1,55 @@
+package org.aes.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+
+import java.util.List;
+
+// A resumable Drive upload in progress, kept until Drive has the whole file so uploads survive a restart. Its file is
+// on the disk of the node that started it, only that node resumes it
+@Getter
+@Setter
+@Entity
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(name = "upload_session")
+public class UploadSession {
+	
+	@Id
+	@Column(name = "id", nullable = false)
+	private String id;
+	
+	@Column(name = "user_id", nullable = false)
+	private String userId;
+	
+	@Column(name = "node_id")
+	private String nodeId; // Null for sessions saved before nodes were recorded
+	
+	@Column(name = "file_path", nullable = false)
+	private String filePath;
+	
+	@Column(name = "session_uri", nullable = false, length = 2048)
+	private String sessionUri;
+	
+	@Column(name = "file_size")
+	private long fileSize;
+	
+	@Column(name = "committed_offset")
+	private long committedOffset; // Bytes Drive has acknowledged, the upload resumes from here
+	
+	@Column(name = "attempt_count")
+	private int attemptCount;
+	
+	@JdbcTypeCode(SqlTypes.JSON)
+	@Column(name = "share_to_list")
+	private List<String> shareToList;
+	
+}
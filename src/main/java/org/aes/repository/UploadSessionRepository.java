@@ -0,0 +1,37 @@
+package org.aes.repository;
+
+import org.aes.model.UploadSession;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+public interface UploadSessionRepository extends JpaRepository<UploadSession, String> {
+	
+	// The sessions of a node, and the ones no node has claimed yet
+	List<UploadSession> findByNodeIdOrNodeIdIsNull(String nodeId);
+	
+	@Transactional
+	@Modifying
+	@Query("UPDATE UploadSession s SET s.nodeId = :nodeId WHERE s.id = :id AND s.nodeId IS NULL")
+	int claim(@Param("id") String id, @Param("nodeId") String nodeId);
+	
+	@Transactional
+	@Modifying
+	@Query("UPDATE UploadSession s SET s.committedOffset = :committedOffset WHERE s.id = :id")
+	void updateCommittedOffset(@Param("id") String id, @Param("committedOffset") long committedOffset);
+	
+	@Transactional
+	@Modifying
+	@Query("UPDATE UploadSession s SET s.attemptCount = s.attemptCount + 1 WHERE s.id = :id")
+	void incrementAttemptCount(@Param("id") String id);
+	
+	@Transactional
+	@Modifying
+	@Query("UPDATE UploadSession s SET s.sessionUri = :sessionUri, s.committedOffset = 0 WHERE s.id = :id")
+	void restart(@Param("id") String id, @Param("sessionUri") String sessionUri);
+	
+}
@@ -3,44 +3,439 @@ package org.aes.service;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import org.aes.dto.DecryptedFileDto;
+import org.aes.dto.EncryptedFileDto;
 import org.aes.event.FileDeletionEvent;
-import org.aes.helper.FileZipper;
+import org.aes.helper.ChannelIO;
+import org.aes.helper.ChunkRing;
+import org.aes.helper.Compression;
+import org.aes.helper.EncryptedContainer;
+import org.aes.helper.FileNames;
+import org.aes.helper.StreamingAesGcm;
 import org.aes.model.AesEncryptionMetaInfo;
-import org.aes.repository.AesEncryptionMetaInfoRepository;
+import org.aes.service.TempWorkspaceService.Workspace;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.security.SecureRandom;
-import java.util.*;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 @RequiredArgsConstructor
 @Service
 public class AesEncryptionDecryptionService {
 	
-	private final AesEncryptionMetaInfoRepository aesEncryptionMetaInfoRepository;
+	private final AesEncryptionMetaInfoWriter aesEncryptionMetaInfoWriter;
+	private final AesEncryptionMetaInfoCacheService aesEncryptionMetaInfoCacheService;
+	private final KeyEncryptionKeyService keyEncryptionKeyService;
+	private final ParallelCipherService parallelCipherService;
+	private final FileUploadService fileUploadService;
+	private final UploadScheduler uploadScheduler;
+	private final TempWorkspaceService tempWorkspaceService;
 	
 	private final ApplicationEventPublisher applicationEventPublisher;
-	private SecretKey secretKey;
 	private static final int TAG_LENGTH = 128;
-	private static final Path TEMP_FILE_PATH = Path.of(System.getProperty("java.io.tmpdir"));
-	private static final String TEMP_META_INFO_FILE_PATH = TEMP_FILE_PATH+"/EncryptionMetaInfo"+"(DO_NOT_DELETE).txt";
+	private static final int SEGMENT_SIZE = StreamingAesGcm.DEFAULT_SEGMENT_SIZE;
+	// The header's length isn't known before the key is wrapped, file names and wrapped keys stay far below this
+	private static final int HEADER_ALLOWANCE = 64 * 1024;
+	private static final String META_INFO_FILE_NAME = "EncryptionMetaInfo"; // Entry name in the legacy zip format
+	private static final String TAMPERED_STRUCTURE_MESSAGE = "The structure of the encrypted file has been tampered with";
 	
+	@Value("${metainfo.audit.enabled}")
+	private boolean auditEnabled;
 	
+	@Value("${metainfo.revocation.check}")
+	private boolean revocationCheck;
+	
+	@Value("${encryption.batch.parallelism}")
+	private int batchParallelism;
+	
+	// Compressing is opted into per request on top of this. A compressed container can't serve ranges or report its
+	// length up front, and the ciphertext's length gives away how well the plaintext compressed
+	@Value("${encryption.compression.enabled}")
+	private boolean compressionEnabled;
+	
+	@Value("${encryption.compression.level}")
+	private int compressionLevel;
+	
+	@Value("${encryption.compression.max.entropy}")
+	private double compressionMaxEntropy; // In Bits per Byte
+	
+	
+	@SneakyThrows
+	public SecretKey generateKey(int keySize) {
+		return newKeyGenerator(keySize).generateKey();
+	}
+	
+	@SneakyThrows
+	public Resource encrypt(MultipartFile file, int keySize, boolean compress, boolean uploadToDrive) { // If set to false also delete encrypted file
+		
+		var workspace = tempWorkspaceService.reserve(containerSize(file.getSize()));
+		
+		// The key is kept per request as this service is shared by concurrent requests
+		EncryptedFile encryptedFile;
+		try (var inputStream = file.getInputStream()) {
+			encryptedFile = encryptToContainer(inputStream, file.getSize(), file.getOriginalFilename(),
+				generateKey(keySize), compress, workspace);
+			awaitMetaInfo(List.of(encryptedFile));
+		} catch (Exception e) {
+			tempWorkspaceService.release(workspace);
+			throw e;
+		}
+		
+		// Publishing Temp File Deletion Event to Clean Up Resources, uploads delete the file once they are done.
+		// Deleting the container releases its workspace
+		if (!uploadToDrive) {
+			applicationEventPublisher.publishEvent(new FileDeletionEvent(List.of(encryptedFile.path())));
+		}
+		
+		return new FileSystemResource(encryptedFile.path());
+		
+	}
+	
+	// Encrypts while the container is uploaded to Drive and written to the response at the same time, so it is neither
+	// staged on disk nor read back. The upload drains a bounded ring of chunks, a slow uplink throttles the encryption.
+	// A live response can't wait in the UploadScheduler's queue, so null is returned when no upload slot is free or
+	// the rings of the other pipelined uploads take up their memory, the caller stages the container on disk then.
+	@SneakyThrows
+	public EncryptedFileDto encryptToDrive(MultipartFile file, int keySize, boolean compress, String userId,
+	                                       List<String> shareToList) {
+		
+		var uniqueFileName = FileNames.generateUniqueFileName(file.getOriginalFilename());
+		var containerName = "Encrypted-" + uniqueFileName + EncryptedContainer.FILE_EXTENSION;
+		
+		var pipelinedUpload = fileUploadService.newPipelinedUpload(userId, containerName, shareToList);
+		if (pipelinedUpload == null) return null;
+		
+		// Starting opens the Drive session before anything is written, so a missing authorization is still an error
+		// response and not a broken download
+		if (!uploadScheduler.tryStart(userId, containerName, file.getSize(), pipelinedUpload::start)) {
+			pipelinedUpload.release();
+			return null;
+		}
+		
+		var upload = pipelinedUpload.chunkRing();
+		
+		try {
+			return encryptToRing(file, keySize, compress, uniqueFileName, containerName, upload);
+		} catch (Exception e) {
+			upload.fail(e); // Ends the upload, which hands back its slot and ring
+			throw e;
+		}
+		
+	}
+	
+	// The returned body writes the container to the response and to the ring, a client that stops downloading doesn't
+	// stop the upload
+	@SneakyThrows
+	private EncryptedFileDto encryptToRing(MultipartFile file, int keySize, boolean compress, String uniqueFileName,
+	                                       String containerName, ChunkRing upload) {
+		
+		var secretKey = generateKey(keySize);
+		
+		var compressed = false;
+		if (compressionEnabled && compress) {
+			try (var inputStream = file.getInputStream()) {
+				compressed = isWorthCompressing(inputStream.readNBytes(Compression.SAMPLE_SIZE));
+			}
+		}
+		
+		var container = prepareContainer(uniqueFileName, secretKey, compressed);
+		var header = container.header();
+		var containerSize = compressed
+			? -1
+			: header.length() + StreamingAesGcm.ciphertextSize(file.getSize(), SEGMENT_SIZE, TAG_LENGTH)
+				+ EncryptedContainer.FOOTER_LENGTH;
+		
+		StreamingResponseBody body = outputStream -> {
+			var deflater = compressed ? new Deflater(compressionLevel) : null;
+			try (var inputStream = file.getInputStream()) {
+				
+				var out = ChannelIO.tee(Channels.newChannel(outputStream), upload);
+				var plaintext = compressed ? new DeflaterInputStream(inputStream, deflater) : inputStream;
+				
+				ChannelIO.writeFully(out, ByteBuffer.wrap(header.encoded()));
+				var ciphertextSize = parallelCipherService.encrypt(ChannelIO.newChannel(plaintext), out, secretKey,
+					header.noncePrefix(), SEGMENT_SIZE, TAG_LENGTH, header.encoded());
+				
+				// The footer completes the container, so it is only written once the meta info is durable
+				container.metaInfoSaved().join();
+				ChannelIO.writeFully(out, EncryptedContainer.footer(ciphertextSize, SEGMENT_SIZE, TAG_LENGTH));
+				
+				upload.close();
+				
+			} catch (Exception e) {
+				upload.fail(e);
+				throw e;
+			} finally {
+				if (deflater != null) deflater.end();
+			}
+		};
+		
+		return new EncryptedFileDto(containerName, containerSize, body);
+		
+	}
+	
+	// Encrypts a file already on disk, e.g. an upload spooled by an encryption job, into the caller's workspace and
+	// returns the container's path
+	@SneakyThrows
+	public Path encrypt(Path file, String fileName, int keySize, boolean compress, Workspace workspace) {
+		
+		EncryptedFile encryptedFile;
+		try (var inputStream = new FileInputStream(file.toFile())) {
+			encryptedFile = encryptToContainer(inputStream, Files.size(file), fileName, generateKey(keySize),
+				compress, workspace);
+		}
+		
+		awaitMetaInfo(List.of(encryptedFile));
+		
+		return encryptedFile.path();
+		
+	}
+	
+	// Encrypts every part, or every entry of a single zip part, into its own container and returns all of them in one
+	// zip. Parts are encrypted concurrently, the key generator, meta info batch and deletion event are shared.
+	@SneakyThrows
+	public Resource encryptBatch(List<MultipartFile> files, int keySize, boolean compress) {
+		
+		var keyGenerator = newKeyGenerator(keySize);
+		
+		// The containers and the zip of them are on disk at the same time. Entries of an archive reserve their
+		// space while they are read, their sizes aren't known up front
+		var archive = files.size() == 1 && isZipArchive(files.getFirst());
+		var containersSize = files.stream().mapToLong(file -> containerSize(file.getSize())).sum();
+		var workspace = tempWorkspaceService.reserve(archive ? 0 : 2 * containersSize);
+		var batchPath = workspace.resolve("Encrypted-Batch-" + UUID.randomUUID() + ".zip");
+		
+		try {
+			
+			var encryptedFiles = archive
+				? encryptArchive(files.getFirst(), keyGenerator, compress, workspace)
+				: encryptConcurrently(files, keyGenerator, compress, workspace);
+			
+			awaitMetaInfo(encryptedFiles);
+			
+			try (var zos = new ZipOutputStream(Files.newOutputStream(batchPath, StandardOpenOption.CREATE_NEW))) {
+				// Containers are ciphertext, compressing them only costs CPU
+				zos.setLevel(Deflater.NO_COMPRESSION);
+				var zipChannel = Channels.newChannel(zos);
+				for (var encryptedFile : encryptedFiles) {
+					zos.putNextEntry(new ZipEntry(encryptedFile.path().getFileName().toString()));
+					ChannelIO.transferTo(encryptedFile.path(), zipChannel);
+					zos.closeEntry();
+				}
+			} finally {
+				for (var encryptedFile : encryptedFiles) Files.deleteIfExists(encryptedFile.path());
+			}
+			
+		} catch (Exception e) {
+			tempWorkspaceService.release(workspace);
+			throw e;
+		}
+		
+		applicationEventPublisher.publishEvent(new FileDeletionEvent(List.of(batchPath)));
+		
+		return new FileSystemResource(batchPath);
+		
+	}
+	
+	@SneakyThrows
+	private List<EncryptedFile> encryptConcurrently(List<MultipartFile> files, KeyGenerator keyGenerator,
+	                                                boolean compress, Workspace workspace) {
+		
+		var permits = new Semaphore(batchParallelism);
+		var futures = new ArrayList<Future<EncryptedFile>>(files.size());
+		
+		try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			
+			for (var file : files) {
+				futures.add(executor.submit(() -> {
+					permits.acquire();
+					try (var inputStream = file.getInputStream()) {
+						return encryptToContainer(inputStream, file.getSize(), file.getOriginalFilename(),
+							generateKey(keyGenerator), compress, workspace);
+					} finally {
+						permits.release();
+					}
+				}));
+			}
+			
+		}
+		
+		var encryptedFiles = new ArrayList<EncryptedFile>(files.size());
+		Throwable failure = null;
+		
+		for (var future : futures) {
+			try {
+				encryptedFiles.add(future.get());
+			} catch (ExecutionException e) {
+				if (failure == null) failure = e.getCause();
+			}
+		}
+		
+		if (failure != null) {
+			for (var encryptedFile : encryptedFiles) Files.deleteIfExists(encryptedFile.path());
+			throw failure;
+		}
+		
+		return encryptedFiles;
+		
+	}
+	
+	// A single archive is read as a stream, so its entries are encrypted one after another (each still on the cipher pool)
+	@SneakyThrows
+	private List<EncryptedFile> encryptArchive(MultipartFile archive, KeyGenerator keyGenerator, boolean compress,
+	                                           Workspace workspace) {
+		
+		var encryptedFiles = new ArrayList<EncryptedFile>();
+		
+		try (var zis = new ZipInputStream(archive.getInputStream())) {
+			ZipEntry entry;
+			while ((entry = zis.getNextEntry()) != null) {
+				if (entry.isDirectory()) continue;
+				var entryFileName = Path.of(entry.getName()).getFileName().toString();
+				var entryStream = new ReservingInputStream(zis, entry.getSize(), workspace);
+				encryptedFiles.add(encryptToContainer(entryStream, entry.getSize(), entryFileName,
+					generateKey(keyGenerator), compress, workspace));
+				zis.closeEntry();
+			}
+		} catch (Exception e) {
+			for (var encryptedFile : encryptedFiles) Files.deleteIfExists(encryptedFile.path());
+			throw e;
+		}
+		
+		return encryptedFiles;
+		
+	}
+	
+	@SneakyThrows
+	private EncryptedFile encryptToContainer(InputStream inputStream, long plaintextSize, String fileName,
+	                                         SecretKey secretKey, boolean compress, Workspace workspace) {
+		
+		var uniqueFileName = FileNames.generateUniqueFileName(fileName);
+		
+		// The sample is buffered, the stream may be an archive entry that can't be opened again. Neither stream is
+		// closed here, the caller owns inputStream
+		compress = compressionEnabled && compress;
+		var sampledStream = compress ? new BufferedInputStream(inputStream, Compression.SAMPLE_SIZE) : inputStream;
+		var compressed = compress && isWorthCompressing(Compression.sample(sampledStream));
+		var deflater = compressed ? new Deflater(compressionLevel) : null;
+		var plaintext = compressed ? new DeflaterInputStream(sampledStream, deflater) : sampledStream;
+		
+		var container = prepareContainer(uniqueFileName, secretKey, compressed);
+		var header = container.header();
+		var noncePrefix = header.noncePrefix();
+		var filePath = workspace.resolve("Encrypted-" + uniqueFileName + EncryptedContainer.FILE_EXTENSION);
+		
+		// Header, segments and footer are written in one pass, segments are encrypted in parallel at their offsets. The
+		// size of compressed plaintext isn't known up front, its segments are written as they come
+		try (var channel = FileChannel.open(filePath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			
+			ChannelIO.writeFully(channel, ByteBuffer.wrap(header.encoded()), 0);
+			
+			var ciphertextSize = parallelCipherService.encrypt(ChannelIO.newChannel(plaintext), channel,
+				header.length(), compressed ? -1 : plaintextSize, secretKey, noncePrefix, SEGMENT_SIZE, TAG_LENGTH,
+				header.encoded());
+			
+			ChannelIO.writeFully(channel, EncryptedContainer.footer(ciphertextSize, SEGMENT_SIZE, TAG_LENGTH),
+				header.length() + ciphertextSize);
+			
+		} catch (Exception e) {
+			Files.deleteIfExists(filePath);
+			throw e;
+		} finally {
+			if (deflater != null) deflater.end();
+		}
+		
+		return new EncryptedFile(filePath, container.metaInfoSaved());
+		
+	}
+	
+	private PreparedContainer prepareContainer(String uniqueFileName, SecretKey secretKey, boolean compressed) {
+		
+		var noncePrefix = StreamingAesGcm.generateNoncePrefix();
+		
+		// The data key travels wrapped inside the file, the meta info row is only kept for audit and revocation and is
+		// written in a batch with other requests while this file is being encrypted
+		var metaInfo = new AesEncryptionMetaInfo(UUID.randomUUID().toString(), null, noncePrefix, TAG_LENGTH,
+			SEGMENT_SIZE);
+		var metaInfoSaved = auditEnabled
+			? aesEncryptionMetaInfoWriter.save(metaInfo)
+			: CompletableFuture.<Void>completedFuture(null);
+		
+		var header = EncryptedContainer.newHeader(metaInfo.getId(), keyEncryptionKeyService.getCurrentAlias(),
+			keyEncryptionKeyService.wrap(secretKey), noncePrefix, SEGMENT_SIZE, TAG_LENGTH, uniqueFileName, compressed);
+		
+		return new PreparedContainer(header, metaInfoSaved);
+		
+	}
+	
+	// Already compressed data, e.g. media or archives, only costs CPU and doesn't get any smaller
+	private boolean isWorthCompressing(byte[] sample) {
+		return Compression.isCompressible(sample, compressionMaxEntropy);
+	}
+	
+	// Upper bound of the size of a container, what a request reserves of the temp disk space budget
+	public static long containerSize(long plaintextSize) {
+		return HEADER_ALLOWANCE + StreamingAesGcm.ciphertextSize(plaintextSize, SEGMENT_SIZE, TAG_LENGTH)
+			+ EncryptedContainer.FOOTER_LENGTH;
+	}
+	
+	// With revocation checks a file can't be decrypted without its meta info, so no file is handed out before the
+	// rows are durable
 	@SneakyThrows
-	public void init(int keySize) {
+	private static void awaitMetaInfo(List<EncryptedFile> encryptedFiles) {
+		
+		try {
+			CompletableFuture.allOf(encryptedFiles.stream()
+				.map(EncryptedFile::metaInfoSaved)
+				.toArray(CompletableFuture[]::new)).join();
+		} catch (CompletionException e) {
+			for (var encryptedFile : encryptedFiles) Files.deleteIfExists(encryptedFile.path());
+			throw e.getCause();
+		}
+		
+	}
+	
+	@SneakyThrows
+	private static KeyGenerator newKeyGenerator(int keySize) {
 		
 		var keyGenerator = KeyGenerator.getInstance("AES");
 		try {
@@ -48,103 +443,322 @@ public class AesEncryptionDecryptionService {
 		} catch (Exception e) {
 			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
 		}
-		this.secretKey = keyGenerator.generateKey();
+		return keyGenerator;
 		
 	}
 	
+	// KeyGenerator isn't thread safe, a batch shares one between its concurrent parts
+	private static SecretKey generateKey(KeyGenerator keyGenerator) {
+		synchronized (keyGenerator) {
+			return keyGenerator.generateKey();
+		}
+	}
+	
+	private static boolean isZipArchive(MultipartFile file) {
+		return "application/zip".equals(file.getContentType())
+			|| (file.getOriginalFilename() != null && file.getOriginalFilename().toLowerCase().endsWith(".zip"));
+	}
+	
 	@SneakyThrows
-	public Resource encrypt(MultipartFile file, int keySize, boolean uploadToDrive) { // If set to false also delete zipped file
+	public DecryptedFileDto decrypt(MultipartFile file, String range) {
 		
-		init(keySize);
+		byte[] signature;
+		try (var in = file.getInputStream()) {
+			signature = in.readNBytes(EncryptedContainer.SIGNATURE_LENGTH);
+		}
 		
-		var encryptionCipher = Cipher.getInstance("AES/GCM/NoPadding");
-		var iv = generateIV();
-		GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(TAG_LENGTH, iv);
-		encryptionCipher.init(Cipher.ENCRYPT_MODE, secretKey, gcmParameterSpec);
+		if (EncryptedContainer.isContainer(signature)) return decryptContainer(file, parseRange(range));
 		
-		// Saving Encryption Meta Info
-		var metaInfo = aesEncryptionMetaInfoRepository
-			.save(new AesEncryptionMetaInfo(UUID.randomUUID().toString(), secretKey, iv, TAG_LENGTH));
-		var uniqueMetaInfoFilePath = Paths.get(FileZipper.generateUniqueFileName(TEMP_META_INFO_FILE_PATH));
-		Files.write(uniqueMetaInfoFilePath, Base64.getEncoder().encode(metaInfo.getId().getBytes()));
+		return decryptZip(file); // Files encrypted before the container format, these don't support ranges
 		
-		var encryptedFileBytes = encryptionCipher.doFinal(file.getBytes());
+	}
+	
+	@SneakyThrows
+	private DecryptedFileDto decryptContainer(MultipartFile file, HttpRange range) {
+		
+		var in = file.getInputStream();
+		EncryptedContainer.Header header;
+		
+		try {
+			header = EncryptedContainer.readHeader(in);
+		} catch (IOException e) {
+			in.close();
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, TAMPERED_STRUCTURE_MESSAGE);
+		}
+		
+		var secretKey = header.hasWrappedKey() ? unwrapDataKey(header, in) : findMetaInfo(header.keyId(), in).getSecretKey();
+		var decryptedFileName = "Decrypted-" + header.fileName();
+		var fileContentType = Files.probeContentType(Path.of(decryptedFileName));
+		var plaintextSize = EncryptedContainer.plaintextSize(header, file.getSize());
 		
-		var uniqueFileName = FileZipper.generateUniqueFileName(file.getOriginalFilename());
-		var filePath = Paths.get(TEMP_FILE_PATH + "/Encrypted-" + uniqueFileName);
-		try (var fos = new FileOutputStream(filePath.toFile())) {
-			fos.write(encryptedFileBytes);
+		// Offsets in the segments are offsets in the compressed stream, so a compressed file is always returned whole,
+		// which HTTP allows for range requests too. Its size is only known once it is inflated
+		if (header.isCompressed()) {
+			
+			var ciphertextLength = EncryptedContainer.ciphertextLength(header, file.getSize());
+			
+			StreamingResponseBody body = outputStream -> {
+				var inflater = new Inflater();
+				try (in) {
+					var out = new InflaterOutputStream(outputStream, inflater);
+					parallelCipherService.decrypt(ChannelIO.limit(ChannelIO.newChannel(in), ciphertextLength),
+						Channels.newChannel(out), secretKey, header.noncePrefix(),
+						header.segmentSize(), header.tagLength(), header.encoded());
+					out.finish();
+				} finally {
+					inflater.end();
+				}
+			};
+			
+			return new DecryptedFileDto(decryptedFileName, fileContentType, -1, null, body);
+			
 		}
 		
-		var zippedFilePath = FileZipper.zip(filePath, uniqueMetaInfoFilePath);
+		if (range == null) {
+			
+			var ciphertextLength = EncryptedContainer.ciphertextLength(header, file.getSize());
+			
+			StreamingResponseBody body = outputStream -> {
+				try (in) {
+					parallelCipherService.decrypt(ChannelIO.limit(ChannelIO.newChannel(in), ciphertextLength),
+						Channels.newChannel(outputStream), secretKey, header.noncePrefix(),
+						header.segmentSize(), header.tagLength(), header.encoded());
+				}
+			};
+			
+			return new DecryptedFileDto(decryptedFileName, fileContentType, plaintextSize, null, body);
+			
+		}
+		
+		long rangeStart;
+		long rangeEnd;
+		try {
+			rangeStart = range.getRangeStart(plaintextSize);
+			rangeEnd = range.getRangeEnd(plaintextSize);
+		} catch (IllegalArgumentException e) {
+			in.close();
+			throw new ResponseStatusException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, e.getMessage());
+		}
+		
+		// Only the segments covering the range are read, authenticated and decrypted
+		var segmentRange = EncryptedContainer.segmentRange(header, file.getSize(), rangeStart, rangeEnd);
+		var rangeLength = rangeEnd - rangeStart + 1;
+		
+		StreamingResponseBody body = outputStream -> {
+			try (in) {
+				in.skipNBytes(segmentRange.ciphertextOffset());
+				parallelCipherService.decrypt(ChannelIO.limit(ChannelIO.newChannel(in), segmentRange.ciphertextLength()),
+					ChannelIO.slice(Channels.newChannel(outputStream), segmentRange.skip(), rangeLength),
+					segmentRange.firstSegment(), segmentRange.includesFinalSegment(), secretKey, header.noncePrefix(),
+					header.segmentSize(), header.tagLength(), header.encoded());
+			}
+		};
 		
-		// Publishing Temp File Deletion Event to Clean Up Resources
-		FileDeletionEvent fileDeletionEvent;
+		var contentRange = "bytes " + rangeStart + "-" + rangeEnd + "/" + plaintextSize;
 		
-		if (uploadToDrive) fileDeletionEvent = new FileDeletionEvent(List.of(filePath, uniqueMetaInfoFilePath));
-		else fileDeletionEvent = new FileDeletionEvent(List.of(filePath, uniqueMetaInfoFilePath, zippedFilePath));
+		return new DecryptedFileDto(decryptedFileName, fileContentType, rangeLength, contentRange, body);
 		
-		applicationEventPublisher.publishEvent(fileDeletionEvent);
+	}
+	
+	// Multiple ranges or a malformed header are answered with the whole file, which HTTP allows
+	private static HttpRange parseRange(String range) {
+		
+		if (range == null) return null;
 		
-		return new FileSystemResource(zippedFilePath);
+		try {
+			var ranges = HttpRange.parseRanges(range);
+			return ranges.size() == 1 ? ranges.get(0) : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
 		
 	}
 	
 	@SneakyThrows
-	public DecryptedFileDto decrypt(MultipartFile file) {
+	private DecryptedFileDto decryptZip(MultipartFile file) {
+		
+		// The zip is read straight from the request, nothing is spooled to disk or buffered as a whole on the heap
+		var zis = new ZipInputStream(file.getInputStream());
+		var zipEntry = zis.getNextEntry();
 		
-		var filePaths = FileZipper.unzip(file);
-		String metaInfoId;
-		AesEncryptionMetaInfo metaInfo = null;
+		if (zipEntry != null && !isMetaInfoFile(zipEntry.getName())) {
+			// Older files have the meta info entry after the encrypted file, so we skip over to it and then reopen
+			// the request stream positioned at the encrypted file
+			var metaInfoId = readMetaInfoId(zis, zis.getNextEntry());
+			zis.close();
+			zis = new ZipInputStream(file.getInputStream());
+			zipEntry = zis.getNextEntry();
+			return streamDecryptedEntry(zis, zipEntry, metaInfoId);
+		}
+		
+		var metaInfoId = readMetaInfoId(zis, zipEntry);
+		return streamDecryptedEntry(zis, zis.getNextEntry(), metaInfoId);
+		
+	}
+	
+	@SneakyThrows
+	private DecryptedFileDto streamDecryptedEntry(ZipInputStream zis, ZipEntry encryptedEntry, String metaInfoId) {
 		
-		if (filePaths.size() == 2) {
-			var metaInfoFilePath = filePaths.stream()
-				.filter(path -> path.equals(Paths.get(TEMP_META_INFO_FILE_PATH)))
-				.findFirst().orElse(null);
-			metaInfoId = new String(Base64.getDecoder().decode(Files.readAllBytes(Objects.requireNonNull(metaInfoFilePath))));
-		} else {
-			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The structure of the encrypted file has been tampered with");
+		if (encryptedEntry == null || isMetaInfoFile(encryptedEntry.getName())) {
+			zis.close();
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, TAMPERED_STRUCTURE_MESSAGE);
 		}
 		
-		Path encryptedFilePath = filePaths.stream()
-			.filter(path -> !path.equals(TEMP_META_INFO_FILE_PATH))
-			.findFirst()
-			.orElse(null);
+		var metaInfo = findMetaInfo(metaInfoId, zis);
 		
-		Optional<AesEncryptionMetaInfo> metaInfoOptional = aesEncryptionMetaInfoRepository.findById(metaInfoId);
-		if (metaInfoOptional.isPresent()) metaInfo = metaInfoOptional.get();
+		var decryptedFileName = Path.of(encryptedEntry.getName()).getFileName().toString()
+			.replace("Encrypted", "Decrypted");
+		var fileContentType = Files.probeContentType(Path.of(decryptedFileName));
 		
-		var decryptionCipher = Cipher.getInstance("AES/GCM/NoPadding");
-		GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(Objects.requireNonNull(metaInfo).getTagLength(), metaInfo.getIv());
+		StreamingResponseBody body = outputStream -> {
+			try (zis) {
+				decryptEntry(zis, outputStream, metaInfo);
+			}
+		};
+		
+		return new DecryptedFileDto(decryptedFileName, fileContentType, -1, null, body);
+		
+	}
+	
+	@SneakyThrows
+	private void decryptEntry(InputStream in, OutputStream out, AesEncryptionMetaInfo metaInfo) {
+		
+		if (metaInfo.getSegmentSize() != null) {
+			parallelCipherService.decrypt(ChannelIO.newChannel(in), Channels.newChannel(out), metaInfo.getSecretKey(),
+				metaInfo.getIv(), metaInfo.getSegmentSize(), metaInfo.getTagLength(), null);
+			return;
+		}
+		
+		// Files encrypted before segmented encryption are a single GCM message, the cipher only releases the
+		// plaintext once the tag is verified in doFinal
+		var decryptionCipher = Cipher.getInstance(StreamingAesGcm.TRANSFORMATION);
+		GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(metaInfo.getTagLength(), metaInfo.getIv());
 		decryptionCipher.init(Cipher.DECRYPT_MODE, metaInfo.getSecretKey(), gcmParameterSpec);
 		
-		var decryptedFileBytes = decryptionCipher.doFinal(Files.readAllBytes(Objects.requireNonNull(encryptedFilePath)));
+		var buffer = new byte[8192];
+		int len;
+		while ((len = in.read(buffer)) > 0) {
+			var decryptedBytes = decryptionCipher.update(buffer, 0, len);
+			if (decryptedBytes != null) out.write(decryptedBytes);
+		}
+		out.write(decryptionCipher.doFinal());
+		
+	}
+	
+	@SneakyThrows
+	private SecretKey unwrapDataKey(EncryptedContainer.Header header, InputStream in) {
+		
+		// Deleting the meta info row of a file revokes it, checked through the cache so most decrypts skip the database
+		if (revocationCheck && aesEncryptionMetaInfoCacheService.findById(header.keyId()).isEmpty()) {
+			in.close();
+			throw new ResponseStatusException(HttpStatus.FORBIDDEN, "The key of this file has been revoked");
+		}
+		
+		try {
+			return keyEncryptionKeyService.unwrap(header.kekAlias(), header.wrappedKey());
+		} catch (ResponseStatusException e) {
+			in.close();
+			throw e;
+		}
 		
-		var decryptedFile = TEMP_FILE_PATH + "/" + encryptedFilePath.getFileName();
-		decryptedFile = decryptedFile.replace("Encrypted", "Decrypted");
-		var decryptedFilePath = Path.of(decryptedFile);
+	}
+	
+	@SneakyThrows
+	private AesEncryptionMetaInfo findMetaInfo(String metaInfoId, InputStream in) {
 		
-		filePaths.add(decryptedFilePath); // Adding it into this list then passing this list for deletion
+		var metaInfo = aesEncryptionMetaInfoCacheService.findById(metaInfoId).orElse(null);
 		
-		try (var fos = new FileOutputStream(decryptedFile)) {
-			fos.write(decryptedFileBytes);
+		// Rows of wrapped key containers are only kept for audit and hold no key, a container pointing at one by id has
+		// had its version changed
+		if (metaInfo == null || metaInfo.getSecretKey() == null) {
+			in.close();
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, TAMPERED_STRUCTURE_MESSAGE);
 		}
 		
-		// Publishing Temp File Deletion Event
-		applicationEventPublisher.publishEvent(new FileDeletionEvent(filePaths));
+		return metaInfo;
+		
+	}
+	
+	@SneakyThrows
+	private static String readMetaInfoId(ZipInputStream zis, ZipEntry metaInfoEntry) {
 		
+		if (metaInfoEntry == null || !isMetaInfoFile(metaInfoEntry.getName())) {
+			zis.close();
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, TAMPERED_STRUCTURE_MESSAGE);
+		}
 		
-		var fileContentType = Files.probeContentType(decryptedFilePath);
+		var metaInfoId = new String(Base64.getDecoder().decode(zis.readAllBytes()));
+		zis.closeEntry();
 		
-		return new DecryptedFileDto(new FileSystemResource(decryptedFile), fileContentType);
+		return metaInfoId;
 		
 	}
 	
+	private record PreparedContainer(EncryptedContainer.Header header, CompletableFuture<Void> metaInfoSaved) {
+	
+	}
+	
+	private record EncryptedFile(Path path, CompletableFuture<Void> metaInfoSaved) {
+	
+	}
+	
+	/*
+	 * Reserves the space of an archive entry's container and its copy in the batch zip while the entry is read. The
+	 * size from the entry's header is reserved up front when it is there, but it isn't trusted, reading past it or
+	 * an entry without one extends the reservation RESERVATION_STEP at a time and fails once the budget is used up.
+	 */
+	private final class ReservingInputStream extends FilterInputStream {
+		
+		private static final long RESERVATION_STEP = 8L * SEGMENT_SIZE;
+		
+		private final Workspace workspace;
+		private long reservedBytes;
+		private long coveredBytes; // Plaintext the reservation is enough for
+		private long readBytes;
+		
+		private ReservingInputStream(InputStream in, long size, Workspace workspace) {
+			super(in);
+			this.workspace = workspace;
+			cover(Math.max(size, 0));
+		}
+		
+		@Override
+		public int read() throws IOException {
+			var b = super.read();
+			if (b >= 0) count(1);
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			var n = super.read(b, off, len);
+			if (n > 0) count(n);
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			var skipped = super.skip(n);
+			count(skipped);
+			return skipped;
+		}
+		
+		private void count(long n) {
+			readBytes += n;
+			if (readBytes > coveredBytes) cover(Math.max(readBytes, coveredBytes + RESERVATION_STEP));
+		}
+		
+		private void cover(long plaintextSize) {
+			var bytes = 2 * containerSize(plaintextSize);
+			tempWorkspaceService.extend(workspace, bytes - reservedBytes);
+			reservedBytes = bytes;
+			coveredBytes = plaintextSize;
+		}
+		
+	}
 	
-	private static byte[] generateIV() {
-		var iv = new byte[12];
-		new SecureRandom().nextBytes(iv);
-		return iv;
+	private static boolean isMetaInfoFile(String fileName) {
+		return Path.of(fileName).getFileName().toString().startsWith(META_INFO_FILE_NAME);
 	}
 	
 }
@@ -0,0 +1,152 @@
+package org.aes.service;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.aes.model.AesEncryptionMetaInfo;
+import org.aes.repository.AesEncryptionMetaInfoRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+
+/*
+ * Caffeine (W-TinyLFU) cache in front of AesEncryptionMetaInfoRepository, the same container is often decrypted
+ * many times in a row. Entries are weighed by their approximate size in bytes, unknown ids are cached for a shorter
+ * time than known ones, and the raw key bytes of an entry are zeroed as soon as it leaves the cache.
+ */
+@RequiredArgsConstructor
+@Service
+public class AesEncryptionMetaInfoCacheService {
+	
+	private static final String CACHE_NAME = "aesEncryptionMetaInfo";
+	private static final int ENTRY_OVERHEAD = 128; // Object headers, references and the boxed fields of an entry
+	
+	private final AesEncryptionMetaInfoRepository aesEncryptionMetaInfoRepository;
+	private final MeterRegistry meterRegistry;
+	
+	@Value("${metainfo.cache.max.bytes}")
+	private long maxBytes;
+	
+	@Value("${metainfo.cache.ttl}")
+	private long ttl; // In Milli Seconds
+	
+	@Value("${metainfo.cache.negative.ttl}")
+	private long negativeTtl; // In Milli Seconds
+	
+	private LoadingCache<String, CachedMetaInfo> cache;
+	
+	@PostConstruct
+	public void init() {
+		
+		cache = Caffeine.newBuilder()
+			.maximumWeight(maxBytes)
+			.weigher((String id, CachedMetaInfo entry) -> entry.weight(id))
+			.expireAfter(new CachedMetaInfoExpiry(Duration.ofMillis(ttl).toNanos(), Duration.ofMillis(negativeTtl).toNanos()))
+			.removalListener((String id, CachedMetaInfo entry, RemovalCause cause) -> {
+				if (entry != null) entry.destroy();
+			})
+			.recordStats()
+			.build(this::load);
+		
+		CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+		
+	}
+	
+	public Optional<AesEncryptionMetaInfo> findById(String id) {
+		
+		// An entry can be evicted (and zeroed) between the lookup and the copy, in that case it's loaded again
+		for (int attempt = 0; attempt < 2; attempt++) {
+			var entry = cache.get(id);
+			if (entry.isNegative()) return Optional.empty();
+			var metaInfo = entry.toMetaInfo(id);
+			if (metaInfo != null) return Optional.of(metaInfo);
+			cache.asMap().remove(id, entry);
+		}
+		
+		return aesEncryptionMetaInfoRepository.findById(id);
+		
+	}
+	
+	private CachedMetaInfo load(String id) {
+		return aesEncryptionMetaInfoRepository.findById(id)
+			.map(metaInfo -> {
+				var secretKey = metaInfo.getSecretKey(); // Null for files that carry their own wrapped key
+				return new CachedMetaInfo(secretKey == null ? null : secretKey.getEncoded(),
+					secretKey == null ? null : secretKey.getAlgorithm(),
+					metaInfo.getIv(), metaInfo.getTagLength(), metaInfo.getSegmentSize());
+			})
+			.orElse(CachedMetaInfo.NEGATIVE);
+	}
+	
+	private record CachedMetaInfoExpiry(long ttl, long negativeTtl) implements Expiry<String, CachedMetaInfo> {
+		
+		@Override
+		public long expireAfterCreate(String id, CachedMetaInfo entry, long currentTime) {
+			return entry.isNegative() ? negativeTtl : ttl;
+		}
+		
+		@Override
+		public long expireAfterUpdate(String id, CachedMetaInfo entry, long currentTime, long currentDuration) {
+			return expireAfterCreate(id, entry, currentTime);
+		}
+		
+		@Override
+		public long expireAfterRead(String id, CachedMetaInfo entry, long currentTime, long currentDuration) {
+			return currentDuration;
+		}
+		
+	}
+	
+	// Keeps the raw key bytes instead of the SecretKey, a SecretKeySpec holds a private copy that can't be wiped
+	private static final class CachedMetaInfo {
+		
+		private static final CachedMetaInfo NEGATIVE = new CachedMetaInfo(null, null, null, 0, null);
+		
+		private final byte[] key;
+		private final String algorithm;
+		private final byte[] iv;
+		private final int tagLength;
+		private final Integer segmentSize;
+		private boolean destroyed;
+		
+		private CachedMetaInfo(byte[] key, String algorithm, byte[] iv, int tagLength, Integer segmentSize) {
+			this.key = key;
+			this.algorithm = algorithm;
+			this.iv = iv;
+			this.tagLength = tagLength;
+			this.segmentSize = segmentSize;
+		}
+		
+		private boolean isNegative() {
+			return this == NEGATIVE;
+		}
+		
+		private int weight(String id) {
+			return ENTRY_OVERHEAD + id.length() * 2 + (key == null ? 0 : key.length) + (iv == null ? 0 : iv.length);
+		}
+		
+		// Null once the entry has been destroyed
+		private synchronized AesEncryptionMetaInfo toMetaInfo(String id) {
+			if (destroyed) return null;
+			return new AesEncryptionMetaInfo(id, key == null ? null : new SecretKeySpec(key, algorithm), iv, tagLength,
+				segmentSize);
+		}
+		
+		private synchronized void destroy() {
+			if (key == null) return;
+			Arrays.fill(key, (byte) 0);
+			destroyed = true;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,148 @@
+package org.aes.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.aes.model.AesEncryptionMetaInfo;
+import org.apache.commons.lang3.SerializationUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Write-behind persistence of AesEncryptionMetaInfo. Rows saved by concurrent requests are collected on a queue and
+ * written by a single writer thread with one JDBC batch insert, once the batch is full or the oldest row in it has
+ * waited batch.delay. The future of a row completes once its batch is written, so callers can still wait for a
+ * durable write without having the database round-trip in front of their own work.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Service
+public class AesEncryptionMetaInfoWriter {
+	
+	private static final String INSERT_SQL =
+		"INSERT INTO aes_encryption_meta_info (id, secret_key, iv, tag_length, segment_size) VALUES (?, ?, ?, ?, ?)";
+	
+	private final JdbcTemplate jdbcTemplate;
+	private final MeterRegistry meterRegistry;
+	
+	@Value("${metainfo.write.batch.size}")
+	private int batchSize;
+	
+	@Value("${metainfo.write.batch.delay}")
+	private long batchDelay; // In Milli Seconds
+	
+	private final BlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<>();
+	private volatile boolean running;
+	private Thread writerThread;
+	private DistributionSummary batchSizeSummary;
+	private Timer flushTimer;
+	
+	@PostConstruct
+	public void init() {
+		batchSizeSummary = DistributionSummary.builder("metainfo.write.batch.size")
+			.description("Rows written per JDBC batch")
+			.register(meterRegistry);
+		flushTimer = Timer.builder("metainfo.write.flush")
+			.description("Time taken to write a batch of meta info rows")
+			.register(meterRegistry);
+		running = true;
+		writerThread = Thread.ofPlatform().name("MetaInfo-Writer").daemon().start(this::run);
+	}
+	
+	@PreDestroy
+	public void shutdown() throws InterruptedException {
+		// Rows already queued are still written before the writer stops
+		running = false;
+		writerThread.interrupt();
+		writerThread.join();
+	}
+	
+	public CompletableFuture<Void> save(AesEncryptionMetaInfo metaInfo) {
+		
+		var pendingWrite = new PendingWrite(metaInfo, new CompletableFuture<>());
+		
+		if (!running) {
+			pendingWrite.written().completeExceptionally(new IllegalStateException("Meta info writer is shut down"));
+		} else {
+			pendingWrites.add(pendingWrite);
+		}
+		
+		return pendingWrite.written();
+		
+	}
+	
+	private void run() {
+		
+		var batch = new ArrayList<PendingWrite>(batchSize);
+		
+		while (running || !pendingWrites.isEmpty()) {
+			
+			try {
+				var first = pendingWrites.take();
+				batch.add(first);
+				
+				var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchDelay);
+				while (batch.size() < batchSize) {
+					var next = pendingWrites.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (next == null) break;
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				// Shutting down, whatever was collected is flushed and the loop drains the rest of the queue
+			}
+			
+			if (!batch.isEmpty()) {
+				flush(batch);
+				batch.clear();
+			}
+			
+		}
+		
+		// Rows queued while the writer was stopping
+		pendingWrites.forEach(pendingWrite ->
+			pendingWrite.written().completeExceptionally(new IllegalStateException("Meta info writer is shut down")));
+		
+	}
+	
+	private void flush(List<PendingWrite> batch) {
+		
+		var start = System.nanoTime();
+		
+		try {
+			jdbcTemplate.batchUpdate(INSERT_SQL, batch, batch.size(), (ps, pendingWrite) -> {
+				var metaInfo = pendingWrite.metaInfo();
+				ps.setString(1, metaInfo.getId());
+				ps.setBytes(2, metaInfo.getSecretKey() == null ? null : SerializationUtils.serialize(metaInfo.getSecretKey()));
+				ps.setBytes(3, metaInfo.getIv());
+				ps.setInt(4, metaInfo.getTagLength());
+				ps.setObject(5, metaInfo.getSegmentSize(), Types.INTEGER);
+			});
+			batch.forEach(pendingWrite -> pendingWrite.written().complete(null));
+		} catch (RuntimeException e) {
+			log.error("Failed to write a batch of {} meta info rows", batch.size(), e);
+			batch.forEach(pendingWrite -> pendingWrite.written().completeExceptionally(e));
+		} finally {
+			flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			batchSizeSummary.record(batch.size());
+		}
+		
+	}
+	
+	private record PendingWrite(AesEncryptionMetaInfo metaInfo, CompletableFuture<Void> written) {
+	
+	}
+	
+}
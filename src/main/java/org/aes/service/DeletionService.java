@@ -1,31 +1,198 @@
 package org.aes.service;
 
-import lombok.SneakyThrows;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.aes.model.UploadSession;
+import org.aes.repository.UploadSessionRepository;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
+/*
+ * Janitor of the temp files handed out by the application. Files are registered with a deadline of now +
+ * delete.files.after on a DelayQueue, a single janitor thread waits for the earliest deadline and then deletes every
+ * file that is due in one batch, so no thread sleeps per request. On startup the temp dir is swept for files a previous
+ * run left behind, the ones older than delete.files.after are deleted right away and the rest get their deadline. Files
+ * in a workspace release the whole workspace, and files of upload sessions that are going to be resumed are kept.
+ */
 @Slf4j
+@RequiredArgsConstructor
 @Service
 public class DeletionService {
 	
+	// Name prefixes of the temp files this application creates, EncryptionMetaInfo(DO_NOT_DELETE).txt is the meta file
+	// earlier versions wrote next to the encrypted files
+	private static final List<String> TEMP_FILE_PREFIXES = List.of("Encrypted-", "Decrypted-", "Spooled-",
+		"ZippedEncryptedFile", "EncryptionMetaInfo", TempWorkspaceService.WORKSPACE_PREFIX);
+	private static final Path TEMP_FILE_PATH = Path.of(System.getProperty("java.io.tmpdir"));
+	
+	private final TempWorkspaceService tempWorkspaceService;
+	private final UploadSessionRepository uploadSessionRepository;
+	private final MeterRegistry meterRegistry;
+	
 	@Value("${delete.files.after}")
-	long deleteFilesAfter;
-	
-	@Async
-	@SneakyThrows
-	public void deleteTempFiles(List<Path> deletionFilesList) {
-		Thread.sleep(deleteFilesAfter);
-		for (var path : deletionFilesList) {
-			if (Files.exists(path)) Files.delete(path);
-			log.debug("File Deleted: {} @{}", path.getFileName(), new Date());
+	private long deleteFilesAfter; // In Milli Seconds
+	
+	@Value("${node.id}")
+	private String nodeId;
+	
+	private final DelayQueue<PendingDeletion> pendingDeletions = new DelayQueue<>();
+	private volatile boolean running;
+	private Thread janitorThread;
+	private Counter reclaimedBytesCounter;
+	private Timer batchTimer;
+	private Timer startupSweepTimer;
+	
+	@PostConstruct
+	public void init() {
+		Gauge.builder("temp.files.pending.deletions", pendingDeletions, DelayQueue::size)
+			.description("Temp files waiting for their deletion")
+			.register(meterRegistry);
+		reclaimedBytesCounter = Counter.builder("temp.files.reclaimed")
+			.baseUnit("bytes")
+			.description("Disk space freed by deleting temp files")
+			.register(meterRegistry);
+		batchTimer = Timer.builder("temp.files.sweep")
+			.tag("type", "batch")
+			.description("Time taken to delete temp files")
+			.register(meterRegistry);
+		startupSweepTimer = Timer.builder("temp.files.sweep")
+			.tag("type", "startup")
+			.description("Time taken to delete temp files")
+			.register(meterRegistry);
+		sweepLeftovers();
+		running = true;
+		janitorThread = Thread.ofPlatform().name("TempFile-Janitor").daemon().start(this::run);
+	}
+	
+	@PreDestroy
+	public void shutdown() throws InterruptedException {
+		// Files still pending are left to the startup sweep of the next run
+		running = false;
+		janitorThread.interrupt();
+		janitorThread.join();
+	}
+	
+	// Safe to call from any thread
+	public void scheduleDeletion(Collection<Path> paths) {
+		var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deleteFilesAfter);
+		paths.forEach(path -> pendingDeletions.add(new PendingDeletion(path, deadline)));
+	}
+	
+	private void run() {
+		
+		var batch = new ArrayList<PendingDeletion>();
+		
+		while (running) {
+			
+			try {
+				batch.add(pendingDeletions.take());
+				pendingDeletions.drainTo(batch); // Only takes the ones that are due as well
+			} catch (InterruptedException e) {
+				// Shutting down
+			}
+			
+			if (!batch.isEmpty()) {
+				var start = System.nanoTime();
+				batch.forEach(pendingDeletion -> delete(pendingDeletion.path()));
+				batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+				batch.clear();
+			}
+			
+		}
+		
+	}
+	
+	private void sweepLeftovers() {
+		
+		var start = System.nanoTime();
+		var now = System.currentTimeMillis();
+		var uploadFiles = uploadSessionRepository.findByNodeIdOrNodeIdIsNull(nodeId).stream()
+			.map(UploadSession::getFilePath)
+			.map(Path::of)
+			.collect(Collectors.toSet());
+		
+		try (var paths = Files.list(TEMP_FILE_PATH)) {
+			paths.filter(path -> isTempFile(path) && !holdsUploadFile(path, uploadFiles)).forEach(path -> {
+				try {
+					var age = now - Files.getLastModifiedTime(path).toMillis();
+					if (age >= deleteFilesAfter) {
+						delete(path);
+					} else {
+						var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deleteFilesAfter - age);
+						pendingDeletions.add(new PendingDeletion(path, deadline));
+					}
+				} catch (IOException e) {
+					log.warn("Couldn't check left over temp file {}", path, e);
+				}
+			});
+		} catch (IOException e) {
+			log.warn("Couldn't sweep {} for left over temp files", TEMP_FILE_PATH, e);
+		}
+		
+		startupSweepTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		
+	}
+	
+	private void delete(Path path) {
+		
+		var releasedBytes = tempWorkspaceService.release(path);
+		if (releasedBytes >= 0) {
+			reclaimedBytesCounter.increment(releasedBytes);
+			log.debug("Workspace Released: {}", path.getFileName());
+			return;
+		}
+		
+		try {
+			var size = Files.size(path);
+			Files.delete(path);
+			reclaimedBytesCounter.increment(size);
+			log.debug("File Deleted: {}", path.getFileName());
+		} catch (IOException e) {
+			// Mostly already gone, e.g. a job that was cleaned up when it failed
+			log.debug("Couldn't delete {}: {}", path.getFileName(), e.toString());
+		}
+		
+	}
+	
+	private static boolean isTempFile(Path path) {
+		var fileName = path.getFileName().toString();
+		return TEMP_FILE_PREFIXES.stream().anyMatch(fileName::startsWith);
+	}
+	
+	private static boolean holdsUploadFile(Path path, Set<Path> uploadFiles) {
+		return uploadFiles.stream().anyMatch(uploadFile -> uploadFile.startsWith(path));
+	}
+	
+	private record PendingDeletion(Path path, long deadline) implements Delayed {
+		
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+		
+		@Override
+		public int compareTo(Delayed other) {
+			return Long.compare(deadline, ((PendingDeletion) other).deadline);
 		}
+		
 	}
 	
 }
@@ -0,0 +1,146 @@
+package org.aes.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.aes.helper.InternetConnectivityChecker;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Circuit breaker for the reachability of the Drive API, shared by every task that talks to Drive. While it is closed
+ * tasks go ahead. The first connection failure opens it, from then on a single probe checks Drive at exponentially
+ * growing intervals (half open while it runs) instead of every waiting task probing on its own. Waiting tasks hold
+ * the future of whenAvailable(), which completes for all of them at once when a probe gets through.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Service
+public class DriveConnectivityMonitor {
+	
+	private final InternetConnectivityChecker internetConnectivityChecker;
+	private final MeterRegistry meterRegistry;
+	
+	@Value("${gdrive.connectivity.probe.initial.interval}")
+	private long initialProbeInterval; // In Milli Seconds
+	
+	@Value("${gdrive.connectivity.probe.max.interval}")
+	private long maxProbeInterval; // In Milli Seconds
+	
+	private enum State {
+		CLOSED,
+		HALF_OPEN,
+		OPEN
+	}
+	
+	// Guarded by this
+	private State state = State.CLOSED;
+	private CompletableFuture<Void> recovery = CompletableFuture.completedFuture(null);
+	private long probeInterval;
+	private long openedAt;
+	
+	private ScheduledExecutorService probeExecutor;
+	private Timer outageTimer;
+	
+	@PostConstruct
+	public void init() {
+		probeExecutor = Executors.newSingleThreadScheduledExecutor(
+			Thread.ofVirtual().name("Drive-Connectivity-Probe").factory());
+		Gauge.builder("gdrive.connectivity.state", this, monitor -> monitor.getState().ordinal())
+			.description("Drive circuit breaker state, 0 closed, 1 half open, 2 open")
+			.register(meterRegistry);
+		outageTimer = Timer.builder("gdrive.connectivity.outage")
+			.description("How long Drive was unreachable")
+			.register(meterRegistry);
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		probeExecutor.shutdownNow();
+	}
+	
+	public synchronized boolean isAvailable() {
+		return state == State.CLOSED;
+	}
+	
+	// Completes right away while Drive is reachable, otherwise when the probe gets through
+	public synchronized CompletableFuture<Void> whenAvailable() {
+		return state == State.CLOSED ? CompletableFuture.completedFuture(null) : recovery.copy();
+	}
+	
+	// For tasks that may block their thread, parks it until Drive is reachable
+	public void awaitAvailable() {
+		whenAvailable().join();
+	}
+	
+	// Called when a Drive request failed to connect. Opens the circuit unless it is already open
+	public synchronized void recordFailure() {
+		
+		if (state != State.CLOSED) return;
+		
+		log.warn("Drive API is unreachable, holding Drive requests until it is back");
+		
+		openedAt = System.nanoTime();
+		recovery = new CompletableFuture<>();
+		probeInterval = initialProbeInterval;
+		transition(State.OPEN);
+		scheduleProbe();
+		
+	}
+	
+	private synchronized State getState() {
+		return state;
+	}
+	
+	private void probe() {
+		
+		synchronized (this) {
+			transition(State.HALF_OPEN);
+		}
+		
+		var reachable = !internetConnectivityChecker.isDriveApiNonAccessible();
+		CompletableFuture<Void> recovered = null;
+		
+		synchronized (this) {
+			if (reachable) {
+				var outageNanos = System.nanoTime() - openedAt;
+				log.info("Drive API is reachable again after {} ms", TimeUnit.NANOSECONDS.toMillis(outageNanos));
+				outageTimer.record(outageNanos, TimeUnit.NANOSECONDS);
+				transition(State.CLOSED);
+				recovered = recovery;
+			} else {
+				probeInterval = Math.min(maxProbeInterval, probeInterval * 2);
+				transition(State.OPEN);
+				scheduleProbe();
+			}
+		}
+		
+		// Outside the lock, the waiting tasks continue from here
+		if (recovered != null) recovered.complete(null);
+		
+	}
+	
+	private void scheduleProbe() {
+		probeExecutor.schedule(this::probe, probeInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	private void transition(State nextState) {
+		state = nextState;
+		Counter.builder("gdrive.connectivity.transitions")
+			.tag("state", nextState.name().toLowerCase())
+			.description("Drive circuit breaker state changes")
+			.register(meterRegistry)
+			.increment();
+	}
+	
+}
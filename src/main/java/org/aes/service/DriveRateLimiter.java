@@ -0,0 +1,170 @@
+package org.aes.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+
+/*
+ * Shared limiter in front of every Drive API call. Each call takes a token from the bucket of its user and from the one
+ * of the project. The rates adapt AIMD style: every success adds a little until the configured quota, every rate-limit
+ * response halves the rate of the limit it hit (userRateLimitExceeded the user's, 429 and rateLimitExceeded the
+ * project's). Throughput settles just under the real quota instead of retrying into it.
+ */
+@RequiredArgsConstructor
+@Service
+public class DriveRateLimiter {
+	
+	private static final double MIN_RATE = 0.5; // Requests per second, the rate never drops below this
+	private static final double DECREASE_FACTOR = 0.5;
+	private static final Duration IDLE_USER_EXPIRY = Duration.ofHours(1);
+	
+	private final MeterRegistry meterRegistry;
+	
+	@Value("${gdrive.rate.limit.project}")
+	private double projectQuota; // Requests per second
+	
+	@Value("${gdrive.rate.limit.user}")
+	private double userQuota; // Requests per second
+	
+	private TokenBucket projectBucket;
+	private Cache<String, TokenBucket> userBuckets;
+	private Counter userThrottledCounter;
+	private Counter projectThrottledCounter;
+	
+	public enum Scope {
+		USER,
+		PROJECT
+	}
+	
+	@PostConstruct
+	public void init() {
+		projectBucket = new TokenBucket(projectQuota);
+		userBuckets = Caffeine.newBuilder().expireAfterAccess(IDLE_USER_EXPIRY).build();
+		Gauge.builder("gdrive.rate.limit.project.rate", this, DriveRateLimiter::getProjectRate)
+			.description("Current request rate allowed for the project, per second")
+			.register(meterRegistry);
+		userThrottledCounter = Counter.builder("gdrive.rate.limit.exceeded")
+			.tag("scope", "user")
+			.description("Rate-limit responses from Drive")
+			.register(meterRegistry);
+		projectThrottledCounter = Counter.builder("gdrive.rate.limit.exceeded")
+			.tag("scope", "project")
+			.description("Rate-limit responses from Drive")
+			.register(meterRegistry);
+	}
+	
+	// Takes a token for userId if both buckets have one and returns 0, otherwise takes nothing and returns the milli
+	// seconds until it is worth trying again. For callers that schedule their retry instead of blocking.
+	public synchronized long tryAcquire(String userId) {
+		
+		var userBucket = userBucket(userId);
+		var now = System.nanoTime();
+		
+		var waitNanos = Math.max(userBucket.nanosUntilToken(now), projectBucket.nanosUntilToken(now));
+		if (waitNanos > 0) return Math.max(1, waitNanos / 1_000_000);
+		
+		userBucket.take();
+		projectBucket.take();
+		
+		return 0;
+		
+	}
+	
+	// Blocks until a token for userId is taken
+	@SneakyThrows
+	public void acquire(String userId) {
+		for (var waitMillis = tryAcquire(userId); waitMillis > 0; waitMillis = tryAcquire(userId)) {
+			Thread.sleep(waitMillis);
+		}
+	}
+	
+	public synchronized double getProjectRate() {
+		return projectBucket.getRate();
+	}
+	
+	public synchronized void onSuccess(String userId) {
+		userBucket(userId).increase();
+		projectBucket.increase();
+	}
+	
+	public synchronized void onRateLimited(String userId, Scope scope) {
+		if (scope == Scope.USER) {
+			userThrottledCounter.increment();
+			userBucket(userId).decrease();
+		} else {
+			projectThrottledCounter.increment();
+			projectBucket.decrease();
+		}
+	}
+	
+	// Rate-limit responses are 429, or 403 with the reason rateLimitExceeded or userRateLimitExceeded, other 4xx are
+	// real errors (e.g. an expired upload session). Null when the response isn't a rate limit.
+	public static Scope classify(int statusCode, String errorReason) {
+		
+		if (errorReason != null && errorReason.contains("userRateLimitExceeded")) return Scope.USER;
+		if (statusCode == 429) return Scope.PROJECT;
+		if (statusCode == 403 && errorReason != null && errorReason.contains("rateLimitExceeded")) return Scope.PROJECT;
+		
+		return null;
+		
+	}
+	
+	private TokenBucket userBucket(String userId) {
+		return userBuckets.get(userId, id -> new TokenBucket(userQuota));
+	}
+	
+	// Not thread safe, guarded by the limiter
+	private static final class TokenBucket {
+		
+		private final double maxRate;
+		private double rate;
+		private double tokens;
+		private long refilledAt = System.nanoTime();
+		
+		private TokenBucket(double maxRate) {
+			this.maxRate = maxRate;
+			this.rate = maxRate;
+			this.tokens = capacity();
+		}
+		
+		private double getRate() {
+			return rate;
+		}
+		
+		// Holds a second of requests, so bursts stay within what the quota allows
+		private double capacity() {
+			return Math.max(1, rate);
+		}
+		
+		private long nanosUntilToken(long now) {
+			tokens = Math.min(capacity(), tokens + (now - refilledAt) * rate / 1e9);
+			refilledAt = now;
+			return tokens >= 1 ? 0 : (long) ((1 - tokens) / rate * 1e9);
+		}
+		
+		private void take() {
+			tokens--;
+		}
+		
+		// Additive increase, about one request per second more for every second of successful requests
+		private void increase() {
+			rate = Math.min(maxRate, rate + 1 / rate);
+		}
+		
+		private void decrease() {
+			rate = Math.max(MIN_RATE, rate * DECREASE_FACTOR);
+			tokens = Math.min(tokens, 0); // Pauses the next request for a token at the new rate
+		}
+		
+	}
+	
+}
@@ -0,0 +1,245 @@
+package org.aes.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.aes.dto.EncryptionJobDto;
+import org.aes.model.EncryptionJobStatus;
+import org.aes.service.TempWorkspaceService.Workspace;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Encryption jobs, the upload is spooled to disk and the request returns right away with a job id. A fixed pool of
+ * workers takes jobs from a bounded queue, when the queue or the budget of spooled bytes is full new jobs are turned
+ * away with Retry-After instead of piling up. A job takes one of queue.capacity + workers slots before anything is
+ * reserved or spooled, so a full queue is answered right away. Jobs and their results are kept for result.ttl after
+ * they finish. The spooled upload and the result share a workspace, reserved at submission for both of them.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Service
+public class EncryptionJobService {
+	
+	private final AesEncryptionDecryptionService aesEncryptionDecryptionService;
+	private final TempWorkspaceService tempWorkspaceService;
+	
+	@Value("${encryption.jobs.workers}")
+	private int workers;
+	
+	@Value("${encryption.jobs.queue.capacity}")
+	private int queueCapacity;
+	
+	@Value("${encryption.jobs.max.spooled.bytes}")
+	private long maxSpooledBytes;
+	
+	@Value("${encryption.jobs.retry.after}")
+	private long retryAfter; // In Seconds
+	
+	@Value("${encryption.jobs.result.ttl}")
+	private long resultTtl; // In Milli Seconds
+	
+	private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+	private final AtomicLong spooledBytes = new AtomicLong();
+	private Semaphore jobSlots; // Queued or running jobs
+	private ThreadPoolExecutor jobExecutor;
+	private ScheduledExecutorService expiryExecutor;
+	
+	@PostConstruct
+	public void init() {
+		jobSlots = new Semaphore(queueCapacity + workers);
+		jobExecutor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(queueCapacity), Thread.ofPlatform().name("Encryption-Job-", 0).factory(),
+			new ThreadPoolExecutor.AbortPolicy());
+		expiryExecutor = Executors.newSingleThreadScheduledExecutor(
+			Thread.ofPlatform().name("Encryption-Job-Expiry").daemon().factory());
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		jobExecutor.shutdownNow();
+		expiryExecutor.shutdownNow();
+	}
+	
+	@SneakyThrows
+	public EncryptionJobDto submit(String username, MultipartFile file, int keySize, boolean compress) {
+		
+		if (!jobSlots.tryAcquire()) {
+			throw rejected(HttpStatus.TOO_MANY_REQUESTS, "Too many encryption jobs are queued, try again later");
+		}
+		
+		var size = file.getSize();
+		if (spooledBytes.addAndGet(size) > maxSpooledBytes) {
+			spooledBytes.addAndGet(-size);
+			jobSlots.release();
+			throw rejected(HttpStatus.SERVICE_UNAVAILABLE, "Too much data is waiting to be encrypted, try again later");
+		}
+		
+		Workspace workspace;
+		try {
+			workspace = tempWorkspaceService.reserve(size + AesEncryptionDecryptionService.containerSize(size));
+		} catch (RuntimeException e) {
+			spooledBytes.addAndGet(-size);
+			jobSlots.release();
+			throw e;
+		}
+		
+		var jobId = UUID.randomUUID().toString();
+		var spoolPath = workspace.resolve("Spooled-" + jobId);
+		var job = new Job(jobId, username, file.getOriginalFilename(), keySize, compress, workspace, spoolPath,
+			size);
+		
+		try {
+			// Moves the multipart temp file when it is already on disk, otherwise writes the in-memory upload out
+			file.transferTo(spoolPath);
+			jobs.put(jobId, job);
+			jobExecutor.execute(() -> run(job));
+		} catch (Exception e) {
+			// Not rejected for a full queue, there is a slot for every job, only when shutting down
+			jobs.remove(jobId);
+			release(job);
+			tempWorkspaceService.release(workspace);
+			jobSlots.release();
+			throw e;
+		}
+		
+		return job.toDto();
+		
+	}
+	
+	public List<EncryptionJobDto> findAll(String username) {
+		return jobs.values().stream()
+			.filter(job -> job.username.equals(username))
+			.sorted(Comparator.comparing(job -> job.submittedAt))
+			.map(Job::toDto)
+			.toList();
+	}
+	
+	public EncryptionJobDto find(String username, String jobId) {
+		return findJob(username, jobId).toDto();
+	}
+	
+	public Resource getResult(String username, String jobId) {
+		
+		var job = findJob(username, jobId);
+		
+		if (job.status != EncryptionJobStatus.DONE) {
+			throw new ResponseStatusException(HttpStatus.CONFLICT, "Encryption job is " + job.status.name().toLowerCase());
+		}
+		
+		return new FileSystemResource(job.resultPath);
+		
+	}
+	
+	private Job findJob(String username, String jobId) {
+		var job = jobs.get(jobId);
+		// Other users' jobs are reported as missing, so job ids can't be probed
+		if (job == null || !job.username.equals(username)) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No encryption job " + jobId);
+		}
+		return job;
+	}
+	
+	private void run(Job job) {
+		
+		job.startedAt = Instant.now();
+		job.status = EncryptionJobStatus.RUNNING;
+		
+		try {
+			job.resultPath = aesEncryptionDecryptionService.encrypt(job.spoolPath, job.fileName, job.keySize,
+				job.compress, job.workspace);
+			job.status = EncryptionJobStatus.DONE;
+		} catch (Exception e) {
+			log.error("Encryption job {} failed", job.jobId, e);
+			job.error = e.getMessage();
+			job.status = EncryptionJobStatus.FAILED;
+		} finally {
+			job.finishedAt = Instant.now();
+			release(job);
+			jobSlots.release();
+			// A failed job has no result to keep
+			if (job.status == EncryptionJobStatus.FAILED) tempWorkspaceService.release(job.workspace);
+			expiryExecutor.schedule(() -> expire(job), resultTtl, TimeUnit.MILLISECONDS);
+		}
+		
+	}
+	
+	private void expire(Job job) {
+		jobs.remove(job.jobId);
+		tempWorkspaceService.release(job.workspace);
+	}
+	
+	@SneakyThrows
+	private void release(Job job) {
+		Files.deleteIfExists(job.spoolPath);
+		spooledBytes.addAndGet(-job.size);
+	}
+	
+	private ResponseStatusException rejected(HttpStatus status, String reason) {
+		
+		var headers = new HttpHeaders();
+		headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter));
+		
+		return new ResponseStatusException(status, reason) {
+			@Override
+			public HttpHeaders getHeaders() {
+				return headers;
+			}
+		};
+		
+	}
+	
+	private static final class Job {
+		
+		private final String jobId;
+		private final String username;
+		private final String fileName;
+		private final int keySize;
+		private final boolean compress;
+		private final Workspace workspace;
+		private final Path spoolPath;
+		private final long size;
+		private final Instant submittedAt = Instant.now();
+		private volatile EncryptionJobStatus status = EncryptionJobStatus.QUEUED;
+		private volatile Instant startedAt;
+		private volatile Instant finishedAt;
+		private volatile Path resultPath;
+		private volatile String error;
+		
+		private Job(String jobId, String username, String fileName, int keySize, boolean compress, Workspace workspace,
+		            Path spoolPath, long size) {
+			this.jobId = jobId;
+			this.username = username;
+			this.fileName = fileName;
+			this.keySize = keySize;
+			this.compress = compress;
+			this.workspace = workspace;
+			this.spoolPath = spoolPath;
+			this.size = size;
+		}
+		
+		private EncryptionJobDto toDto() {
+			return new EncryptionJobDto(jobId, fileName, status, submittedAt, startedAt, finishedAt, error);
+		}
+		
+	}
+	
+}
@@ -2,6 +2,12 @@ package org.aes.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.api.client.auth.oauth2.Credential;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
@@ -11,100 +17,213 @@ import org.aes.dto.GDriveFileDto;
 import org.aes.event.FileDeletionEvent;
 import org.aes.event.FileUploadEvent;
 import org.aes.event.FileUploadSuccessEvent;
+import org.aes.helper.AdaptiveChunkSizer;
+import org.aes.helper.ChannelIO;
+import org.aes.helper.ChunkRing;
 import org.aes.helper.FileChunkProvider;
-import org.aes.helper.InternetConnectivityChecker;
 import org.aes.helper.TimeCalculator;
+import org.aes.model.UploadSession;
+import org.aes.repository.UploadSessionRepository;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.http.*;
-import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestClient;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.io.File;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.security.SecureRandom;
-import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/*
+ * Resumable Drive uploads. Every upload is a small state machine (ChunkedUpload) that makes one request per step and
+ * schedules its next step on a ScheduledExecutorService, so no thread is parked while an upload backs off and retries
+ * don't grow the stack. After any failure the upload asks Drive which bytes it has and continues from there. An upload
+ * that gives up is queued again after failed.retry.after, one whose user has to authorize Drive again is dropped.
+ */
 @Slf4j
 @RequiredArgsConstructor
 @Service
 public class FileUploadService {
 	
 	private final ApplicationEventPublisher applicationEventPublisher;
-	private static final int UPLOAD_CHUNK_SIZE = 2048; //KBs
-	private static final int MAX_BACKOFF_TIME = 64000; //64 Sec
-	private static final int MAX_UPLOAD_RETRIES = 16; // 17 retries -> 0 based
+	private final UploadSessionRepository uploadSessionRepository;
+	private final MeterRegistry meterRegistry;
+	private final DriveRateLimiter driveRateLimiter;
+	private final DriveConnectivityMonitor driveConnectivityMonitor;
+	private final RestClient restClient;
+	private final GoogleDriveService googleDriveService;
+	private static final int INITIAL_UPLOAD_CHUNK_SIZE = 2048 * 1024; // 2 MB, adapted to the link after every chunk
+	private static final int MAX_UPLOAD_CHUNK_SIZE = 32 * 1024 * 1024; // 32 MB
+	private static final long TARGET_CHUNK_UPLOAD_TIME = 4000; // 4 Sec
+	private static final long BASE_BACKOFF_TIME = 1000; // 1 Sec
+	private static final long MAX_BACKOFF_TIME = 64000; //64 Sec
+	private static final int MAX_UPLOAD_RETRIES = 16; // Consecutive failures before the upload gives up for a while
+	private static final int RESUME_INCOMPLETE = 308;
 	
 	@Value("${gdrive.resumable.upload.url}")
 	private String gDriveUploadUrl;
 	
+	@Value("${node.id}")
+	private String nodeId;
+	
+	@Value("${gdrive.upload.threads}")
+	private int uploadThreads;
+	
+	@Value("${gdrive.upload.failed.retry.after}")
+	private long failedRetryAfter; // In Milli Seconds
+	
+	@Value("${gdrive.pipeline.chunk.size}")
+	private int pipelineChunkSize; // A multiple of 256 KB as Drive requires
+	
+	@Value("${gdrive.pipeline.ring.chunks}")
+	private int pipelineRingChunks;
+	
+	@Value("${gdrive.pipeline.max.bytes}")
+	private long pipelineMaxBytes; // Across the rings of all pipelined uploads
+	
+	private final AtomicLong pipelineBytes = new AtomicLong();
+	private ScheduledExecutorService uploadExecutor;
+	private Counter retryCounter;
+	private Timer backoffTimer;
+	
+	@PostConstruct
+	public void init() {
+		// Steps block on HTTP, so they run on virtual threads, waiting between steps doesn't take a thread at all
+		uploadExecutor = Executors.newScheduledThreadPool(uploadThreads, Thread.ofVirtual().name("Upload-", 0).factory());
+		retryCounter = Counter.builder("gdrive.upload.retries")
+			.description("Failed upload requests that were retried")
+			.register(meterRegistry);
+		backoffTimer = Timer.builder("gdrive.upload.backoff")
+			.description("Time uploads waited before retrying")
+			.register(meterRegistry);
+		Gauge.builder("gdrive.pipeline.reserved", pipelineBytes, AtomicLong::get)
+			.baseUnit("bytes")
+			.description("Memory reserved by the chunk rings of pipelined uploads")
+			.register(meterRegistry);
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		// Unfinished uploads keep their UploadSession and are resumed on the next startup
+		uploadExecutor.shutdownNow();
+	}
+	
 	@SneakyThrows
 	public void initiateUpload(String userId, File file, List<String> shareToList) {
 		
-		var userCredentials = GoogleDriveService.getFlow().loadCredential(userId);
+		var userCredentials = googleDriveService.getCredential(userId);
+		driveRateLimiter.acquire(userId);
 		var resumableUploadUri = getResumableUploadUrl(userCredentials, file);
 		
 		if (resumableUploadUri == null) throw new ResponseStatusException(HttpStatus.UNAUTHORIZED,
 			"Unauthorized while resumable uri for file upload for this user");
 		
-		var fileUploadEventDto = new GDriveFileDto(file, resumableUploadUri, shareToList);
+		// Persisting the session, so the upload can be resumed from its last acknowledged byte after a restart
+		var uploadSession = uploadSessionRepository.save(new UploadSession(UUID.randomUUID().toString(), userId,
+			nodeId, file.getAbsolutePath(), resumableUploadUri, file.length(), 0, 0, shareToList));
+		
+		var fileUploadEventDto = new GDriveFileDto(userId, file, resumableUploadUri, shareToList, uploadSession.getId(), 0);
 		
 		applicationEventPublisher.publishEvent(new FileUploadEvent(fileUploadEventDto));
 		
 	}
 	
-	@SneakyThrows
-	@Async
-	public void uploadFileChunks(GDriveFileDto gDriveFileDto) {
+	// Returns right away, the upload runs on the upload executor. The future completes once the upload has completed
+	// or given up, which is when the UploadScheduler hands its slot to the next upload
+	public CompletableFuture<Void> uploadFileChunks(GDriveFileDto gDriveFileDto) {
 		
-		while (InternetConnectivityChecker.isDriveApiNonAccessible()) Thread.sleep(Duration.ofSeconds(10));
+		uploadSessionRepository.incrementAttemptCount(gDriveFileDto.uploadSessionId());
 		
-		var fileChunks = FileChunkProvider.getChunks(gDriveFileDto.file(), UPLOAD_CHUNK_SIZE);
-		var totalBytesInFileChunks = fileChunks.stream().mapToInt(chunk -> chunk.array().length).sum();
-		Optional<String> uploadedFileId = Optional.empty();
+		var upload = new ChunkedUpload(gDriveFileDto);
+		// Uploads queued during an outage all start together once Drive is reachable
+		driveConnectivityMonitor.whenAvailable().thenRunAsync(upload::start, uploadExecutor);
 		
-		log.debug("Starting file chunk upload of size {} * {} * 1024 = Bytes {}", fileChunks.size(), UPLOAD_CHUNK_SIZE,
-			totalBytesInFileChunks);
+		return upload.finished;
 		
-		for (int i = 0 ; i < fileChunks.size() ; i++) {
-			
-			var chunk = fileChunks.get(i).array();
-			int contentRangeA = (i > 0) ? fileChunks.get(i-1).array().length * i : 0;
-			int contentRangeB = contentRangeA + chunk.length - 1;
-			
-			uploadedFileId = uploadChunk(gDriveFileDto,
-				chunk,
-				0, // It's not a retry attempt
-				contentRangeA,
-				contentRangeB);
-			
+	}
+	
+	// Prepares the upload of a stream that is still being written, e.g. a container while it is encrypted. Its ring
+	// is reserved against pipeline.max.bytes, null is returned when the rings of the other pipelined uploads take up
+	// the budget, the stream is better staged on disk then. Once started, bytes written to the ring are uploaded while
+	// the rest is produced, and whenever the uplink falls behind the ring blocks the writer. Close the ring once
+	// everything is written, or fail it to abandon the upload. An upload that isn't started has to be released, so its
+	// ring is given back. As nothing is on disk such an upload can't be resumed after a restart.
+	public PipelinedUpload newPipelinedUpload(String userId, String fileName, List<String> shareToList) {
+		
+		var ringBytes = (long) pipelineChunkSize * pipelineRingChunks;
+		
+		if (pipelineBytes.addAndGet(ringBytes) > pipelineMaxBytes) {
+			pipelineBytes.addAndGet(-ringBytes);
+			return null;
 		}
 		
-		if (uploadedFileId.isEmpty()) return;
+		return new PipelinedUpload(userId, fileName, shareToList, new ChunkRing(pipelineChunkSize, pipelineRingChunks),
+			ringBytes);
 		
-		var fileDeletionEvent = new FileDeletionEvent(List.of(gDriveFileDto.file().toPath()));
-		var filePermissionGrantDto = new FilePermissionGrantDto(uploadedFileId.get(), gDriveFileDto.shareToUsersList());
+	}
+	
+	// Picks up the uploads that were in progress when the application stopped. They start by asking Drive for the
+	// committed range, so they continue from the byte Drive last acknowledged, or start over if the session expired.
+	// Only this node's sessions are resumed, the files of the others are on their nodes' disks. A session saved before
+	// nodes were recorded is claimed by the node that has its file.
+	@Async
+	public void resumeUploadSessions() {
 		
-		applicationEventPublisher.publishEvent(fileDeletionEvent);
-		applicationEventPublisher.publishEvent(new FileUploadSuccessEvent(filePermissionGrantDto));
+		for (var uploadSession : uploadSessionRepository.findByNodeIdOrNodeIdIsNull(nodeId)) {
+			
+			var file = new File(uploadSession.getFilePath());
+			
+			if (uploadSession.getNodeId() == null
+				&& (!file.exists() || uploadSessionRepository.claim(uploadSession.getId(), nodeId) == 0)) {
+				continue;
+			}
+			
+			if (!file.exists()) {
+				log.warn("Dropping upload session {}, {} no longer exists", uploadSession.getId(), file);
+				uploadSessionRepository.delete(uploadSession);
+				continue;
+			}
+			
+			log.info("Resuming upload session {} of {} from Byte {}", uploadSession.getId(), file,
+				uploadSession.getCommittedOffset());
+			
+			applicationEventPublisher.publishEvent(new FileUploadEvent(new GDriveFileDto(uploadSession.getUserId(),
+				file, uploadSession.getSessionUri(), uploadSession.getShareToList(), uploadSession.getId(),
+				uploadSession.getCommittedOffset())));
+			
+		}
 		
 	}
 	
 	@SneakyThrows
 	private String getResumableUploadUrl(Credential userCredentials, File file) {
+		var contentType = Objects.requireNonNullElse(Files.probeContentType(file.toPath()),
+			MediaType.APPLICATION_OCTET_STREAM_VALUE);
+		return getResumableUploadUrl(userCredentials, file.getName(), contentType);
+	}
+	
+	private String getResumableUploadUrl(Credential userCredentials, String fileName, String contentType) {
 		
 		var requestBody = """
 			{"name" : "%s"}
-			""".formatted(file.getName());
-		var contentType = Files.probeContentType(file.toPath());
+			""".formatted(fileName);
 		
-		var resumableUri =  RestClient.create(gDriveUploadUrl)
-			.method(HttpMethod.POST)
+		var resumableUri =  restClient.method(HttpMethod.POST)
+			.uri(URI.create(gDriveUploadUrl))
 			.body(requestBody)
 			.headers(h -> {
 				h.setBearerAuth(userCredentials.getAccessToken());
@@ -122,133 +241,479 @@ public class FileUploadService {
 		
 	}
 	
-	@SneakyThrows
-	private Optional<String> uploadChunk(GDriveFileDto gDriveFileDto,
-	                                     byte[] chunk,
-	                                     int retryIndex,
-	                                     int contentRangeA,
-	                                     int contentRangeB) {
-		// Use AtomicReference to hold the uploadedFileId as its in lambda context
-		var uploadedFileId = new AtomicReference<String>();
-		
-		try {
-			
-			RestClient.create(gDriveFileDto.resumableUrl())
-				.method(HttpMethod.PUT)
-				.body(chunk)
-				.headers(h -> {
-					// Content-Length: Set to the number of bytes in the current chunk.
-					h.setContentLength(chunk.length);
-					//Content-Range: Set to show which bytes in the file you upload
-					// For example, Content-Range: bytes 0-524287/2000000 shows that you upload the first 524,288 bytes
-					// (256 x 1024 x 2) in a 2,000,000 byte file.
-					h.set(HttpHeaders.CONTENT_RANGE,
-						"bytes " + contentRangeA + "-" + (contentRangeB) + "/" + gDriveFileDto.file().length());
-					
-					log.debug("Uploading File Chunks Content Range: Bytes {}-{}/{}",
-						contentRangeA, contentRangeB, gDriveFileDto.file().length());
-				})
-				.retrieve()
-				.onStatus(HttpStatusCode::is5xxServerError, (req, res) ->
-					// To fix 5xxServerErrors, use exponential backoff to retry the request
-					initiateRetryAttempt(gDriveFileDto, chunk, retryIndex, contentRangeA, contentRangeB)
-				)
-				.onStatus(HttpStatusCode::is4xxClientError, (req, res) ->
-					// For any 4xx errors (including 403) during a resumable upload, restart the upload.
-					// These errors indicate the upload session has expired and must be restarted
-					// by requesting a new session URI. Upload sessions also expire after one week of inactivity.
-					// So, publishing a new FileUploadEvent to initiate upload from beginning
-					applicationEventPublisher.publishEvent(new FileUploadEvent(gDriveFileDto))
-				)
-				.onStatus(HttpStatusCode::is3xxRedirection, (req, res) -> {
-					
-					var uploadedBytes = Integer.parseInt(Objects.requireNonNull(res.getHeaders()
-							.getFirst("range"))
-						.split("-")[1]);
-					
-					log.debug("ResponseStatusCode: {}, Uploaded Bytes: {} | @{}",
-						res.getStatusCode(), uploadedBytes, res.getHeaders().getFirst("date"));
-					// If you received a 308 Resume Incomplete response, process the Range header of the response
-					// to determine which bytes the server has received. If the response doesn't have a Range header,
-					// no bytes have been received. For example, a Range header of bytes=0-42 indicates that the
-					// first 43 bytes of the file were received and that the next chunk to upload would start with byte 44.
-					handleUploadedBytesResponse(gDriveFileDto, chunk, contentRangeA, contentRangeB, res, uploadedBytes);
-				})
-				.onStatus(HttpStatusCode::is2xxSuccessful, (req, res) -> {
-					
-					log.debug("ResponseStatusCode: {}, Uploaded Bytes: {} | @{}",
-						res.getStatusCode(),
-						contentRangeB,
-						res.getHeaders().getFirst("date"));
-					log.debug("ResponseStatusCode: {}, File Uploaded Successfully!", res.getStatusCode());
-					
-					var responseDto = new ObjectMapper()
-						.readValue(res.getBody(), FileUploadResponseDto.class);
-					
-					uploadedFileId.set(responseDto.getMappedResponse().get("id"));
-				})
-				.toBodilessEntity();
-			
-		} catch (Exception e) {
-			log.debug("Exception while uploading file: {}", e.getMessage());
-			initiateRetryAttempt(gDriveFileDto, chunk, retryIndex, contentRangeA, contentRangeB);
-		}
-		
-		return Optional.ofNullable(uploadedFileId.get());
+	// Sends the chunk starting at offset, or with a null chunk asks Drive which bytes it has (Content-Range: bytes */size).
+	// A negative fileSize is sent as *, for streams whose length isn't known until their last chunk
+	private ChunkResponse putChunk(String resumableUrl, ByteBuffer chunk, long offset, long fileSize) {
+		
+		var totalSize = fileSize < 0 ? "*" : String.valueOf(fileSize);
+		var contentRange = chunk == null
+			? "bytes */" + totalSize
+			: "bytes " + offset + "-" + (offset + chunk.remaining() - 1) + "/" + totalSize;
+		
+		log.debug("Uploading File Chunks Content Range: {}", contentRange);
+		
+		// The pooled client keeps the connection to Drive open between chunks
+		var request = restClient.method(HttpMethod.PUT).uri(URI.create(resumableUrl));
+		
+		if (chunk != null) {
+			// Writing the chunk from its buffer to the request stream, without copying it into a byte[] first
+			request.body(outputStream -> ChannelIO.writeFully(Channels.newChannel(outputStream), chunk.duplicate()));
+		}
 		
+		return request
+			.headers(h -> {
+				// Content-Length: Set to the number of bytes in the current chunk.
+				h.setContentLength(chunk == null ? 0 : chunk.remaining());
+				//Content-Range: Set to show which bytes in the file you upload
+				// For example, Content-Range: bytes 0-524287/2000000 shows that you upload the first 524,288 bytes
+				// (256 x 1024 x 2) in a 2,000,000 byte file.
+				h.set(HttpHeaders.CONTENT_RANGE, contentRange);
+			})
+			.exchange((req, res) -> {
+				
+				log.debug("ResponseStatusCode: {} | @{}", res.getStatusCode(), res.getHeaders().getFirst("date"));
+				
+				String uploadedFileId = null;
+				DriveRateLimiter.Scope rateLimit = null;
+				if (res.getStatusCode().is2xxSuccessful()) {
+					var responseDto = new ObjectMapper().readValue(res.getBody(), FileUploadResponseDto.class);
+					uploadedFileId = responseDto.getMappedResponse().get("id");
+				} else if (res.getStatusCode().is4xxClientError()) {
+					// The error reason in the body tells a rate limit apart from an expired session
+					var errorBody = new String(res.getBody().readAllBytes(), StandardCharsets.UTF_8);
+					rateLimit = DriveRateLimiter.classify(res.getStatusCode().value(), errorBody);
+				}
+				
+				return new ChunkResponse(res.getStatusCode(), res.getHeaders().getFirst("range"), uploadedFileId,
+					rateLimit);
+				
+			});
+		
+	}
+	
+	private enum UploadState {
+		SEND_CHUNK,
+		QUERY_STATUS,
+		RESTART,
+		COMPLETED,
+		FAILED
 	}
 	
-	private void handleUploadedBytesResponse(GDriveFileDto gDriveFileDto,
-	                                         byte[] chunk,
-	                                         int contentRangeA,
-	                                         int contentRangeB,
-	                                         ClientHttpResponse res,
-	                                         int uploadedBytes) {
+	private final class ChunkedUpload {
+		
+		private final GDriveFileDto gDriveFileDto;
+		private final AdaptiveChunkSizer chunkSizer =
+			new AdaptiveChunkSizer(INITIAL_UPLOAD_CHUNK_SIZE, MAX_UPLOAD_CHUNK_SIZE, TARGET_CHUNK_UPLOAD_TIME);
+		private FileChunkProvider chunkProvider;
+		private String resumableUrl;
+		private long committedOffset;
+		private UploadState state;
+		private int consecutiveFailures;
+		private long previousBackoff;
+		private int retries; // Per upload counters, logged once the upload is over
+		private long backoffMillis;
+		private final CompletableFuture<Void> finished = new CompletableFuture<>();
+		
+		private ChunkedUpload(GDriveFileDto gDriveFileDto) {
+			this.gDriveFileDto = gDriveFileDto;
+			this.resumableUrl = gDriveFileDto.resumableUrl();
+			this.committedOffset = gDriveFileDto.committedOffset();
+			// A resumed upload first asks Drive what it already has, the checkpoint can be behind
+			this.state = committedOffset > 0 ? UploadState.QUERY_STATUS : UploadState.SEND_CHUNK;
+		}
+		
+		private void start() {
+			
+			try {
+				// Chunks are read from the file one at a time when they are sent, only one chunk is held in memory
+				chunkProvider = FileChunkProvider.open(gDriveFileDto.file());
+			} catch (Exception e) {
+				log.error("Can't read {} for upload", gDriveFileDto.file(), e);
+				state = UploadState.FAILED;
+				finished.complete(null);
+				return;
+			}
+			
+			log.debug("Starting file chunk upload of {} Bytes from Byte {}", chunkProvider.size(), committedOffset);
+			
+			step();
+			
+		}
+		
+		// Makes one transition, then hands the next one back to the executor. Every transition is one Drive request, so
+		// it waits for a token of the rate limiter first
+		private void step() {
+			
+			if (!driveConnectivityMonitor.isAvailable()) {
+				waitForDrive();
+				return;
+			}
+			
+			var throttleMillis = driveRateLimiter.tryAcquire(gDriveFileDto.userId());
+			if (throttleMillis > 0) {
+				uploadExecutor.schedule(this::step, throttleMillis, TimeUnit.MILLISECONDS);
+				return;
+			}
+			
+			try {
+				switch (state) {
+					case SEND_CHUNK -> sendChunk();
+					case QUERY_STATUS -> handleResponse(putChunk(resumableUrl, null, committedOffset, chunkProvider.size()), 0);
+					case RESTART -> restart();
+					default -> throw new IllegalStateException("Upload is already " + state);
+				}
+			} catch (HttpClientErrorException e) { // Only requesting a new session throws for 4xx
+				var rateLimit = DriveRateLimiter.classify(e.getStatusCode().value(), e.getResponseBodyAsString());
+				if (rateLimit != null) onRateLimited(rateLimit);
+				else onFailure();
+			} catch (ResponseStatusException e) { // Only getting the user's credential throws these
+				if (e.getStatusCode() == HttpStatus.UNAUTHORIZED) drop(e.getReason());
+				else onFailure();
+			} catch (ResourceAccessException e) { // Couldn't connect, or the connection broke
+				log.debug("Drive unreachable while uploading file: {}", e.getMessage());
+				chunkSizer.onFailure();
+				driveConnectivityMonitor.recordFailure();
+				waitForDrive();
+			} catch (Exception e) {
+				log.debug("Exception while uploading file: {}", e.getMessage());
+				onFailure();
+			}
+			
+		}
+		
+		private void sendChunk() {
+			
+			if (committedOffset >= chunkProvider.size()) { // Every byte is acknowledged, Drive only has to confirm
+				transition(UploadState.QUERY_STATUS);
+				return;
+			}
+			
+			var chunk = chunkProvider.read(committedOffset, chunkSizer.chunkSize());
+			var chunkUploadStart = System.nanoTime();
+			
+			handleResponse(putChunk(resumableUrl, chunk, committedOffset, chunkProvider.size()),
+				System.nanoTime() - chunkUploadStart);
+			
+		}
+		
+		private void handleResponse(ChunkResponse response, long elapsedNanos) {
+			
+			var status = response.status();
+			
+			if (response.rateLimit() != null) {
+				onRateLimited(response.rateLimit());
+				return;
+			}
+			
+			if (status.value() == RESUME_INCOMPLETE || status.is2xxSuccessful()) {
+				driveRateLimiter.onSuccess(gDriveFileDto.userId());
+			}
+			
+			if (status.value() == RESUME_INCOMPLETE) {
+				
+				// The Range header tells which bytes Drive has received, e.g. bytes=0-42 means the next chunk starts at
+				// byte 43. Without a Range header no bytes have been received. Partially received chunks are simply
+				// continued from there.
+				var range = response.range();
+				var acknowledgedOffset = range == null ? 0 : Long.parseLong(range.split("-")[1]) + 1;
+				
+				if (elapsedNanos > 0) chunkSizer.onSuccess(acknowledgedOffset - committedOffset, elapsedNanos);
+				
+				committedOffset = acknowledgedOffset;
+				consecutiveFailures = 0;
+				previousBackoff = 0;
+				uploadSessionRepository.updateCommittedOffset(gDriveFileDto.uploadSessionId(), committedOffset);
+				
+				transition(UploadState.SEND_CHUNK);
+				
+			} else if (status.is2xxSuccessful()) {
+				if (elapsedNanos > 0) chunkSizer.onSuccess(chunkProvider.size() - committedOffset, elapsedNanos);
+				complete(response.uploadedFileId());
+			} else if (status.is4xxClientError()) {
+				// For any 4xx errors (including 403) other than rate limits during a resumable upload, restart the upload.
+				// These errors indicate the upload session has expired and must be restarted
+				// by requesting a new session URI. Upload sessions also expire after one week of inactivity.
+				log.debug("ResponseStatusCode: {}, restarting the upload with a new session", status);
+				transition(UploadState.RESTART);
+			} else {
+				// To fix 5xxServerErrors, use backoff to retry the request
+				onFailure();
+			}
+			
+		}
+		
+		@SneakyThrows
+		private void restart() {
+			
+			var userCredentials = googleDriveService.getCredential(gDriveFileDto.userId());
+			
+			resumableUrl = getResumableUploadUrl(userCredentials, gDriveFileDto.file());
+			committedOffset = 0;
+			uploadSessionRepository.restart(gDriveFileDto.uploadSessionId(), resumableUrl);
+			
+			transition(UploadState.SEND_CHUNK);
+			
+		}
+		
+		// Backs off, then asks Drive which bytes of the failed request it got before continuing
+		private void onFailure() {
+			
+			chunkSizer.onFailure();
+			consecutiveFailures++;
+			
+			if (consecutiveFailures > MAX_UPLOAD_RETRIES) {
+				log.error("Giving up upload of {} after {} retries, it is tried again in {} ms",
+					gDriveFileDto.file(), retries, failedRetryAfter);
+				finish(UploadState.FAILED);
+				// Queued like a new upload, so it waits for a slot of the UploadScheduler again
+				uploadExecutor.schedule(() -> applicationEventPublisher.publishEvent(new FileUploadEvent(
+					new GDriveFileDto(gDriveFileDto.userId(), gDriveFileDto.file(), resumableUrl,
+						gDriveFileDto.shareToUsersList(), gDriveFileDto.uploadSessionId(), committedOffset))),
+					failedRetryAfter, TimeUnit.MILLISECONDS);
+				return;
+			}
+			
+			var backoff = TimeCalculator.calculateRetryDelay(BASE_BACKOFF_TIME, MAX_BACKOFF_TIME, previousBackoff);
+			previousBackoff = backoff;
+			retries++;
+			backoffMillis += backoff;
+			retryCounter.increment();
+			backoffTimer.record(backoff, TimeUnit.MILLISECONDS);
+			
+			state = UploadState.QUERY_STATUS;
+			uploadExecutor.schedule(this::step, backoff, TimeUnit.MILLISECONDS);
+			
+		}
+		
+		// Parks the upload without a thread until the connectivity monitor sees Drive again, then continues from what
+		// Drive has. Outages don't count as failures, the upload waits them out however long they last
+		private void waitForDrive() {
+			if (state != UploadState.RESTART) state = UploadState.QUERY_STATUS;
+			driveConnectivityMonitor.whenAvailable().thenRunAsync(this::step, uploadExecutor);
+		}
+		
+		// Drive rejected the request because of a quota, the limiter slows down and the upload continues from what Drive
+		// has once it gets a token. Doesn't count as a failure, so a busy quota never makes an upload give up
+		private void onRateLimited(DriveRateLimiter.Scope scope) {
+			
+			log.debug("Drive {} rate limit exceeded while uploading {}", scope, gDriveFileDto.file());
+			driveRateLimiter.onRateLimited(gDriveFileDto.userId(), scope);
+			retries++;
+			retryCounter.increment();
+			
+			// A rate-limited session request is simply made again
+			transition(state == UploadState.RESTART ? UploadState.RESTART : UploadState.QUERY_STATUS);
+			
+		}
+		
+		private void complete(String uploadedFileId) {
+			
+			log.debug("File Uploaded Successfully! {} retries, {} ms spent backing off", retries, backoffMillis);
+			finish(UploadState.COMPLETED);
+			
+			uploadSessionRepository.deleteById(gDriveFileDto.uploadSessionId());
+			
+			var fileDeletionEvent = new FileDeletionEvent(List.of(gDriveFileDto.file().toPath()));
+			var filePermissionGrantDto = new FilePermissionGrantDto(gDriveFileDto.userId(), uploadedFileId,
+				gDriveFileDto.shareToUsersList());
+			
+			applicationEventPublisher.publishEvent(fileDeletionEvent);
+			applicationEventPublisher.publishEvent(new FileUploadSuccessEvent(filePermissionGrantDto));
+			
+		}
 		
-		if (res.getHeaders().getFirst("range") == null || uploadedBytes == 0) {
-			uploadChunk(gDriveFileDto, chunk, 0, contentRangeA, contentRangeB);
-		} else if (uploadedBytes < contentRangeB) { // Meaning less bytes are received by the Google Drive Server
+		// The user's credential is gone, retrying can't help until Drive is authorized again. The file is deleted like
+		// the one of a completed upload, which also releases its workspace
+		private void drop(String reason) {
 			
-			var unUploadedChunk = Arrays.copyOfRange(chunk,
-				uploadedBytes - contentRangeA + 1,
-				chunk.length);
+			log.warn("Dropping upload of {}: {}", gDriveFileDto.file(), reason);
+			finish(UploadState.FAILED);
 			
-			// Sending again those bytes that are not received by the Google Drive Server
-			uploadChunk(gDriveFileDto,
-				unUploadedChunk,
-				0,
-				uploadedBytes + 1,
-				contentRangeB);
+			uploadSessionRepository.deleteById(gDriveFileDto.uploadSessionId());
+			applicationEventPublisher.publishEvent(new FileDeletionEvent(List.of(gDriveFileDto.file().toPath())));
 			
 		}
 		
+		private void transition(UploadState nextState) {
+			state = nextState;
+			uploadExecutor.execute(this::step);
+		}
+		
+		@SneakyThrows
+		private void finish(UploadState finalState) {
+			state = finalState;
+			chunkProvider.close();
+			finished.complete(null);
+		}
+		
 	}
 	
-	@SneakyThrows
-	private void initiateRetryAttempt(GDriveFileDto gDriveFileDto,
-	                                  byte[] chunk,
-	                                  int retryIndex,
-	                                  int contentRangeA,
-	                                  int contentRangeB) {
+	// Uploads the chunks of a ChunkRing on its own virtual thread while they are written. Each chunk is kept until Drive
+	// has acknowledged all of it, after a failure the upload asks Drive what it has and resends from there. Blocking is
+	// fine here, the thread is parked anyway whenever the producer hasn't filled the next chunk yet.
+	public final class PipelinedUpload {
+		
+		private final String userId;
+		private final String fileName;
+		private final List<String> shareToList;
+		private final ChunkRing chunkRing;
+		private final long ringBytes;
+		private final AtomicBoolean ringReleased = new AtomicBoolean();
+		private String resumableUrl;
+		private long committedOffset;
+		private int retries;
+		private long backoffMillis;
+		
+		private PipelinedUpload(String userId, String fileName, List<String> shareToList, ChunkRing chunkRing,
+		                        long ringBytes) {
+			this.userId = userId;
+			this.fileName = fileName;
+			this.shareToList = shareToList;
+			this.chunkRing = chunkRing;
+			this.ringBytes = ringBytes;
+		}
+		
+		public ChunkRing chunkRing() {
+			return chunkRing;
+		}
 		
-		if (retryIndex < MAX_UPLOAD_RETRIES) {
+		// Opens the Drive session before it returns, so a missing authorization is thrown to the caller. Then the
+		// upload runs on its own virtual thread. The future completes once the upload has completed or given up, which
+		// is when the UploadScheduler hands its slot to the next upload
+		@SneakyThrows
+		public CompletableFuture<Void> start() {
 			
-			long waitTillRetryAttempt = TimeCalculator.calculateRetryDelay(retryIndex);
-			waitTillRetryAttempt = Math.min(waitTillRetryAttempt,
-				MAX_BACKOFF_TIME + SecureRandom.getInstanceStrong().nextLong(1001));
+			try {
+				var userCredentials = googleDriveService.getCredential(userId);
+				driveRateLimiter.acquire(userId);
+				resumableUrl = getResumableUploadUrl(userCredentials, fileName,
+					MediaType.APPLICATION_OCTET_STREAM_VALUE);
+				if (resumableUrl == null) throw new ResponseStatusException(HttpStatus.UNAUTHORIZED,
+					"Unauthorized while resumable uri for file upload for this user");
+			} catch (Exception e) {
+				release();
+				throw e;
+			}
 			
-			Thread.sleep(waitTillRetryAttempt);
+			var finished = new CompletableFuture<Void>();
 			
-			uploadChunk(gDriveFileDto,
-				chunk,
-				retryIndex + 1,
-				contentRangeA,
-				contentRangeB);
+			Thread.ofVirtual().name("Pipelined-Upload-" + fileName).start(() -> {
+				try {
+					run();
+				} finally {
+					release();
+					finished.complete(null);
+				}
+			});
+			
+			return finished;
+			
+		}
+		
+		// Gives the ring's bytes back to pipeline.max.bytes, once however often it is called
+		public void release() {
+			if (ringReleased.compareAndSet(false, true)) pipelineBytes.addAndGet(-ringBytes);
+		}
+		
+		private void run() {
+			
+			try {
+				
+				String uploadedFileId = null;
+				
+				while (uploadedFileId == null) {
+					var chunk = chunkRing.take();
+					uploadedFileId = send(chunk);
+					chunkRing.release(chunk);
+				}
+				
+				log.debug("File Uploaded Successfully! {} retries, {} ms spent backing off", retries, backoffMillis);
+				
+				var filePermissionGrantDto = new FilePermissionGrantDto(userId, uploadedFileId, shareToList);
+				applicationEventPublisher.publishEvent(new FileUploadSuccessEvent(filePermissionGrantDto));
+				
+			} catch (Exception e) {
+				log.error("Pipelined upload of {} failed after {} retries", fileName, retries, e);
+				chunkRing.abort();
+			}
 			
-		} else { // After MAX_UPLOAD_RETRIES retrying upload from start
-			applicationEventPublisher.publishEvent(new FileUploadEvent(gDriveFileDto));
 		}
 		
+		// Returns the id of the uploaded file once Drive has the whole file, null when it has all of this chunk
+		@SneakyThrows
+		private String send(ChunkRing.Chunk chunk) {
+			
+			// The total is only known with the last chunk
+			var totalSize = chunk.last() ? chunk.end() : -1;
+			var queryStatus = false;
+			var consecutiveFailures = 0;
+			long previousBackoff = 0;
+			
+			while (true) {
+				
+				driveConnectivityMonitor.awaitAvailable();
+				driveRateLimiter.acquire(userId);
+				
+				ChunkResponse response;
+				try {
+					var unacknowledged = chunk.buffer().slice((int) (committedOffset - chunk.offset()),
+						(int) (chunk.end() - committedOffset));
+					var body = queryStatus || !unacknowledged.hasRemaining() ? null : unacknowledged;
+					response = putChunk(resumableUrl, body, committedOffset, totalSize);
+					queryStatus = false;
+				} catch (ResourceAccessException e) {
+					driveConnectivityMonitor.recordFailure();
+					queryStatus = true;
+					continue;
+				}
+				
+				var status = response.status();
+				
+				if (response.rateLimit() != null) {
+					driveRateLimiter.onRateLimited(userId, response.rateLimit());
+					queryStatus = true;
+				} else if (status.value() == RESUME_INCOMPLETE) {
+					driveRateLimiter.onSuccess(userId);
+					var range = response.range();
+					var acknowledgedOffset = range == null ? 0 : Long.parseLong(range.split("-")[1]) + 1;
+					// The chunks before this one are released, Drive can't be asked to go back to them
+					if (acknowledgedOffset < chunk.offset()) {
+						throw new IllegalStateException("Drive lost bytes of chunks that were already acknowledged");
+					}
+					committedOffset = acknowledgedOffset;
+					consecutiveFailures = 0;
+					previousBackoff = 0;
+					if (committedOffset >= chunk.end() && !chunk.last()) return null;
+				} else if (status.is2xxSuccessful()) {
+					driveRateLimiter.onSuccess(userId);
+					return response.uploadedFileId();
+				} else if (status.is4xxClientError()) {
+					// The stream can't be produced again, so unlike a file upload this one can't start over
+					throw new IllegalStateException("Upload session expired with " + status);
+				} else {
+					if (++consecutiveFailures > MAX_UPLOAD_RETRIES) {
+						throw new IllegalStateException("Giving up after " + retries + " retries, last " + status);
+					}
+					var backoff = TimeCalculator.calculateRetryDelay(BASE_BACKOFF_TIME, MAX_BACKOFF_TIME,
+						previousBackoff);
+					previousBackoff = backoff;
+					retries++;
+					backoffMillis += backoff;
+					retryCounter.increment();
+					backoffTimer.record(backoff, TimeUnit.MILLISECONDS);
+					Thread.sleep(backoff);
+					queryStatus = true;
+				}
+				
+			}
+			
+		}
+		
+	}
+	
+	private record ChunkResponse(HttpStatusCode status, String range, String uploadedFileId,
+		DriveRateLimiter.Scope rateLimit) {
+	
 	}
 	
 }
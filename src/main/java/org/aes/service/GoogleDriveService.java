@@ -1,12 +1,18 @@
 package org.aes.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.StoredCredential;
+import com.google.api.client.auth.oauth2.TokenResponseException;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.store.DataStore;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveScopes;
@@ -16,14 +22,17 @@ import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import org.aes.helper.JdbcDataStoreFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpStatus;
-import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.io.StringReader;
+import java.time.Duration;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
@@ -39,6 +48,18 @@ public class GoogleDriveService {
 	private static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
 	private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
 	private static final List<String> SCOPES = Collections.singletonList(DriveScopes.DRIVE);
+	private static final Duration CLIENT_EXPIRY = Duration.ofMinutes(30);
+	
+	private final JdbcTemplate jdbcTemplate;
+	
+	// Keyed by user id, async tasks have no security context to find the user in. The credentials of active users are
+	// kept here, so the token refresher renews the same instances the Drive clients and uploads use
+	private final Cache<String, Credential> credentials = Caffeine.newBuilder()
+		.expireAfterAccess(CLIENT_EXPIRY)
+		.build();
+	private final Cache<String, Drive> driveClients = Caffeine.newBuilder()
+		.expireAfterAccess(CLIENT_EXPIRY)
+		.build();
 	
 	@Value("${google.oauth.callback.uri}")
 	private String callbackUri;
@@ -47,8 +68,13 @@ public class GoogleDriveService {
 	private String oauthCredentials;
 	
 	@Value("${google.oauth.credentials.folder.path}")
-	private Resource credentialsFolderPath;
+	private Resource credentialsFolderPath; // Where earlier versions stored credentials, only read to import them
+	
+	@Value("${google.oauth.credentials.cache.ttl}")
+	private long credentialsCacheTtl; // In Milli Seconds
 	
+	@Value("${google.oauth.token.refresh.ahead}")
+	private long tokenRefreshAhead; // In Milli Seconds
 	
 	@SneakyThrows
 	@PostConstruct
@@ -60,8 +86,12 @@ public class GoogleDriveService {
 		var googleClientSecrets = GoogleClientSecrets.load(JSON_FACTORY,
 			new StringReader(decodedJsonCredentials));
 		
+		// Credentials are kept in the database, so any node can serve any user's Drive operations
+		var dataStoreFactory = new JdbcDataStoreFactory(jdbcTemplate, Duration.ofMillis(credentialsCacheTtl));
+		importFileCredentials(StoredCredential.getDefaultDataStore(dataStoreFactory));
+		
 		flow = new GoogleAuthorizationCodeFlow.Builder(HTTP_TRANSPORT, JSON_FACTORY, googleClientSecrets, SCOPES)
-			.setDataStoreFactory(new FileDataStoreFactory(credentialsFolderPath.getFile()))
+			.setDataStoreFactory(dataStoreFactory)
 			//Setting setAccessType("offline") indicates that you want to receive a refresh token, and
 			// setApprovalPrompt("force") ensures that the user is prompted to grant consent, even if
 			// they have previously granted access to your application, in case your CredentialStore gets deleted
@@ -71,28 +101,100 @@ public class GoogleDriveService {
 		
 	}
 	
-	@SneakyThrows
-	public Drive getDrive() {
-		var authenticatedUserId = SecurityContextHolder.getContext().getAuthentication().getName();
-		return new Drive.Builder(HTTP_TRANSPORT, JSON_FACTORY, flow.loadCredential(authenticatedUserId))
+	// Clients are built once per user and reused, their credential is kept fresh by refreshExpiringTokens()
+	public Drive getDrive(String userId) {
+		return driveClients.get(userId, id -> new Drive.Builder(HTTP_TRANSPORT, JSON_FACTORY, getCredential(id))
 			.setApplicationName(APPLICATION_NAME)
-			.build();
+			.build());
+	}
+	
+	public Credential getCredential(String userId) {
+		return credentials.get(userId, this::loadCredential);
+	}
+	
+	// Renews the access tokens of active users shortly before they expire, so uploads and permission grants never wait
+	// for a refresh in their own request. The new token is saved to the shared store for the other nodes too.
+	@Scheduled(fixedDelayString = "${google.oauth.token.refresh.interval}")
+	public void refreshExpiringTokens() {
+		
+		credentials.asMap().forEach((userId, credential) -> {
+			
+			var expiresInSeconds = credential.getExpiresInSeconds();
+			if (expiresInSeconds != null && expiresInSeconds * 1000 > tokenRefreshAhead) return;
+			
+			try {
+				credential.refreshToken();
+			} catch (TokenResponseException e) {
+				// The user revoked the access or the refresh token expired, they have to authorize Drive again
+				log.warn("Refresh token of {} is no longer valid: {}", userId, e.getMessage());
+				removeCredential(userId);
+			} catch (Exception e) {
+				// Tried again on the next run, the token is still valid for a while
+				log.warn("Couldn't refresh the access token of {}: {}", userId, e.getMessage());
+			}
+			
+		});
+		
+	}
+	
+	@SneakyThrows
+	private Credential loadCredential(String userId) {
+		
+		var credential = flow.loadCredential(userId);
+		
+		if (credential == null) throw new ResponseStatusException(HttpStatus.UNAUTHORIZED,
+			"Google Drive isn't authorized for this user");
+		
+		// After a restart or an eviction the stored token may be expired or about to, it is renewed before first use
+		// instead of failing the first upload until refreshExpiringTokens() comes around
+		var expiresInSeconds = credential.getExpiresInSeconds();
+		if (expiresInSeconds == null || expiresInSeconds * 1000 <= tokenRefreshAhead) {
+			try {
+				credential.refreshToken();
+			} catch (TokenResponseException e) {
+				// Not through removeCredential(), this runs while the credentials cache is loading this very entry
+				log.warn("Refresh token of {} is no longer valid: {}", userId, e.getMessage());
+				flow.getCredentialDataStore().delete(userId);
+				driveClients.invalidate(userId);
+				throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Google Drive has to be authorized again");
+			}
+		}
+		
+		return credential;
+		
+	}
+	
+	@SneakyThrows
+	private void removeCredential(String userId) {
+		flow.getCredentialDataStore().delete(userId);
+		credentials.invalidate(userId);
+		driveClients.invalidate(userId);
+	}
+	
+	// Credentials stored in files by earlier versions are copied to the database once, it is the only store from now on
+	@SneakyThrows
+	private void importFileCredentials(DataStore<StoredCredential> credentialStore) {
+		
+		if (!credentialsFolderPath.exists() || !credentialsFolderPath.isFile()) return;
+		
+		var fileCredentialStore = StoredCredential.getDefaultDataStore(
+			new FileDataStoreFactory(credentialsFolderPath.getFile()));
+		
+		for (var userId : fileCredentialStore.keySet()) {
+			if (!credentialStore.containsKey(userId)) credentialStore.set(userId, fileCredentialStore.get(userId));
+		}
+		
 	}
 	
 	@SneakyThrows
 	public boolean isDriveAuthorized(String email) {
 /*		The documentation says:
 		Call AuthorizationCodeFlow.loadCredential(String)) based on the user ID to check if the end-user's
-		credentials are already known If so, we're done. So, we use refreshToken() method to Request a new access
-		token from the authorization endpoint and returning true else if no refresh token exists returns false*/
-		var credentials = flow.loadCredential(email);
-		
-		try {
-			return credentials != null && credentials.refreshToken();
-		} catch (Exception e) {
-			throw new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT,
-				"Unable to complete authorization sequence due to some network issues");
-		}
+		credentials are already known If so, we're done. A stored refresh token is enough, refreshExpiringTokens()
+		renews the access token in the background and drops credentials whose refresh token stopped working*/
+		var credential = flow.loadCredential(email);
+		
+		return credential != null && credential.getRefreshToken() != null;
 		
 	}
 	
@@ -106,6 +208,9 @@ public class GoogleDriveService {
 	public void exchangeCodeForAccessToken(String code, String userId) {
 		var googleTokenResponse = flow.newTokenRequest(code).setRedirectUri(callbackUri).execute();
 		flow.createAndStoreCredential(googleTokenResponse, userId);
+		// The cached credential and client still hold the old tokens
+		credentials.invalidate(userId);
+		driveClients.invalidate(userId);
 	}
 	
 }
@@ -0,0 +1,131 @@
+package org.aes.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Envelope encryption. Every file is still encrypted with its own data key, the data key is wrapped (AES key wrap,
+ * RFC 3394) with a key-encryption key from a local PKCS12 keystore and stored inside the encrypted file, so decrypt
+ * can unwrap it without a database round-trip. New files are wrapped with the KEK under the configured alias, KEKs
+ * under every other alias in the keystore are kept to unwrap files written before a rotation. A missing keystore or
+ * alias fails startup, every node has to use the same KEKs and a new one can't unwrap any existing file. Only with
+ * generate.if.missing a KEK is generated, e.g. for the first start of a single development node.
+ */
+@Slf4j(topic = "KeyEncryptionKeyService")
+@Service
+public class KeyEncryptionKeyService {
+	
+	private static final String KEYSTORE_TYPE = "PKCS12";
+	private static final String WRAP_TRANSFORMATION = "AESWrap";
+	private static final int KEK_SIZE = 256;
+	
+	@Value("${encryption.kek.keystore.path}")
+	private Path keystorePath;
+	
+	@Value("${encryption.kek.keystore.password}")
+	private char[] keystorePassword;
+	
+	@Value("${encryption.kek.alias}")
+	private String currentAlias;
+	
+	@Value("${encryption.kek.generate.if.missing}")
+	private boolean generateIfMissing;
+	
+	private final Map<String, SecretKey> keyEncryptionKeys = new HashMap<>();
+	
+	@PostConstruct
+	@SneakyThrows
+	public void init() {
+		
+		var keyStore = KeyStore.getInstance(KEYSTORE_TYPE);
+		var protection = new KeyStore.PasswordProtection(keystorePassword);
+		
+		var keystoreExists = Files.exists(keystorePath);
+		
+		if (keystoreExists) {
+			try (var in = Files.newInputStream(keystorePath)) {
+				keyStore.load(in, keystorePassword);
+			}
+		} else {
+			keyStore.load(null, keystorePassword);
+		}
+		
+		if (!keyStore.containsAlias(currentAlias)) {
+			
+			if (!generateIfMissing) {
+				var path = keystorePath.toAbsolutePath();
+				throw new IllegalStateException(keystoreExists
+					? "No key-encryption key under alias '%s' in %s".formatted(currentAlias, path)
+					: "Key-encryption keystore %s doesn't exist".formatted(path));
+			}
+			
+			log.warn("!!! No key-encryption key under alias '{}', GENERATING A NEW ONE in {}. Files encrypted with this "
+				+ "KEK can only be decrypted with this keystore, copy it to every node and back it up !!!", currentAlias,
+				keystorePath.toAbsolutePath());
+			var keyGenerator = KeyGenerator.getInstance("AES");
+			keyGenerator.init(KEK_SIZE);
+			keyStore.setEntry(currentAlias, new KeyStore.SecretKeyEntry(keyGenerator.generateKey()), protection);
+			if (keystorePath.toAbsolutePath().getParent() != null) {
+				Files.createDirectories(keystorePath.toAbsolutePath().getParent());
+			}
+			try (var out = Files.newOutputStream(keystorePath)) {
+				keyStore.store(out, keystorePassword);
+			}
+		}
+		
+		for (var aliases = keyStore.aliases(); aliases.hasMoreElements(); ) {
+			var alias = aliases.nextElement();
+			if (keyStore.getEntry(alias, protection) instanceof KeyStore.SecretKeyEntry entry) {
+				keyEncryptionKeys.put(alias, entry.getSecretKey());
+			}
+		}
+		
+		log.info("Loaded {} key-encryption key(s), wrapping with '{}'", keyEncryptionKeys.size(), currentAlias);
+		
+	}
+	
+	public String getCurrentAlias() {
+		return currentAlias;
+	}
+	
+	@SneakyThrows
+	public byte[] wrap(SecretKey dataKey) {
+		var cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+		cipher.init(Cipher.WRAP_MODE, keyEncryptionKeys.get(currentAlias));
+		return cipher.wrap(dataKey);
+	}
+	
+	public SecretKey unwrap(String alias, byte[] wrappedKey) {
+		
+		var keyEncryptionKey = keyEncryptionKeys.get(alias);
+		if (keyEncryptionKey == null) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The key this file was encrypted with is not available");
+		}
+		
+		try {
+			var cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+			cipher.init(Cipher.UNWRAP_MODE, keyEncryptionKey);
+			return (SecretKey) cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+		} catch (GeneralSecurityException e) {
+			// The key wrap integrity check failed, the wrapped key was modified
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The structure of the encrypted file has been tampered with");
+		}
+		
+	}
+	
+}
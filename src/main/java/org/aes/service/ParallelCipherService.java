@@ -0,0 +1,353 @@
+package org.aes.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.aes.helper.ChannelIO;
+import org.aes.helper.StreamingAesGcm;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Runs the segments of a StreamingAesGcm stream on a pool of cipher threads. The input is read sequentially into
+ * direct buffers, but every segment has its own nonce and tag, so segments are sealed/opened independently of each
+ * other. A request keeps at most maxSegmentsInFlight segments in flight, and all requests together hold at most
+ * max.segments segments, each taken with a permit of one shared semaphore. Memory is bounded whatever the file size
+ * and the number of concurrent requests are. An ordered sink, e.g. a response or a ChunkRing, may block for as long as
+ * its reader takes, so a request writing to one gives its permits back first and takes them again afterwards, and a
+ * stalled reader doesn't hold up the other requests' segments.
+ */
+@Slf4j
+@Service
+public class ParallelCipherService {
+	
+	private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(StreamingAesGcm::newCipher);
+	
+	@Value("${encryption.parallelism}")
+	private int parallelism; // 0 means one cipher thread per available processor
+	
+	@Value("${encryption.max.segments}")
+	private int maxSegments; // Across all requests
+	
+	@Value("${encryption.pooled.max.bytes}")
+	private long maxPooledBytes; // Across all segment sizes
+	
+	private final Map<Long, Queue<Segment>> segmentPools = new ConcurrentHashMap<>();
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private ForkJoinPool cipherPool;
+	private Semaphore segmentPermits;
+	private int maxSegmentsInFlight;
+	
+	@PostConstruct
+	public void init() {
+		var threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+		cipherPool = new ForkJoinPool(threads);
+		maxSegmentsInFlight = threads * 2;
+		// A request can't make progress with less than the segment being read and the one read ahead
+		segmentPermits = new Semaphore(Math.max(2, maxSegments), true);
+		log.info("Cipher pool started with {} threads", threads);
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		cipherPool.shutdown();
+	}
+	
+	// Writes every segment straight to its offset in the preallocated file, in whatever order they finish
+	@SneakyThrows
+	public long encrypt(ReadableByteChannel in, FileChannel out, long position, long plaintextSize,
+	                    SecretKey key, byte[] noncePrefix, int segmentSize, int tagLength, byte[] associatedData) {
+		
+		var ciphertextSegmentSize = StreamingAesGcm.ciphertextSegmentSize(segmentSize, tagLength);
+		
+		if (plaintextSize >= 0) {
+			var end = position + StreamingAesGcm.ciphertextSize(plaintextSize, segmentSize, tagLength);
+			out.write(ByteBuffer.allocate(1), end - 1);
+		}
+		
+		return process(in, segmentSize, ciphertextSegmentSize, 0, true,
+			(cipher, index, last, input, output) ->
+				StreamingAesGcm.sealSegment(cipher, key, noncePrefix, tagLength, associatedData, index, last, input, output),
+			(index, output) -> ChannelIO.writeFully(out, output, position + index * ciphertextSegmentSize),
+			false);
+		
+	}
+	
+	public long encrypt(ReadableByteChannel in, WritableByteChannel out, SecretKey key, byte[] noncePrefix,
+	                    int segmentSize, int tagLength, byte[] associatedData) {
+		return process(in, segmentSize, StreamingAesGcm.ciphertextSegmentSize(segmentSize, tagLength), 0, true,
+			(cipher, index, last, input, output) ->
+				StreamingAesGcm.sealSegment(cipher, key, noncePrefix, tagLength, associatedData, index, last, input, output),
+			(index, output) -> ChannelIO.writeFully(out, output),
+			true);
+	}
+	
+	public long decrypt(ReadableByteChannel in, WritableByteChannel out, SecretKey key, byte[] noncePrefix,
+	                    int segmentSize, int tagLength, byte[] associatedData) {
+		return decrypt(in, out, 0, true, key, noncePrefix, segmentSize, tagLength, associatedData);
+	}
+	
+	// Decrypts a run of segments starting at firstSegmentIndex, e.g. only the segments covering a requested range.
+	// The last segment of the run only gets the last segment nonce if it is the final segment of the file.
+	public long decrypt(ReadableByteChannel in, WritableByteChannel out, long firstSegmentIndex,
+	                    boolean includesFinalSegment, SecretKey key, byte[] noncePrefix, int segmentSize, int tagLength,
+	                    byte[] associatedData) {
+		return process(in, StreamingAesGcm.ciphertextSegmentSize(segmentSize, tagLength), segmentSize,
+			firstSegmentIndex, includesFinalSegment,
+			(cipher, index, last, input, output) ->
+				StreamingAesGcm.openSegment(cipher, key, noncePrefix, tagLength, associatedData, index, last, input, output),
+			(index, output) -> ChannelIO.writeFully(out, output),
+			true);
+	}
+	
+	@SneakyThrows
+	private long process(ReadableByteChannel in, int inputSize, int outputSize, long firstSegmentIndex,
+	                     boolean includesFinalSegment, SegmentCipher segmentCipher, SegmentSink sink,
+	                     boolean orderedSink) {
+		
+		var inFlight = new ArrayDeque<CompletableFuture<Segment>>();
+		var freeSegments = new ArrayDeque<Segment>();
+		var permits = new SegmentPermits();
+		long outputBytes = 0;
+		
+		acquirePermits(permits);
+		
+		try {
+			
+			// Reading one segment ahead, so we know which segment is the last one before it is submitted
+			var current = takeSegment(freeSegments, permits, inputSize, outputSize);
+			read(in, current);
+			long segmentIndex = firstSegmentIndex;
+			
+			while (true) {
+				
+				// Without a free segment and no permit left to take one, the oldest segment in flight is waited for,
+				// with an ordered sink all of them are
+				while (inFlight.size() >= maxSegmentsInFlight
+					|| (freeSegments.isEmpty() && permits.used == permits.held && !inFlight.isEmpty()
+					&& !tryTakePermit(permits))) {
+					if (orderedSink) {
+						outputBytes += writeOrdered(inFlight, sink, freeSegments, permits, inputSize, outputSize);
+						acquirePermits(permits);
+					} else {
+						outputBytes += complete(inFlight.poll(), freeSegments);
+					}
+				}
+				
+				var next = takeSegment(freeSegments, permits, inputSize, outputSize);
+				boolean lastSegment = current.input.limit() < inputSize || read(in, next) == 0;
+				
+				inFlight.add(submit(current, segmentIndex, lastSegment && includesFinalSegment, segmentCipher, sink,
+					orderedSink));
+				
+				if (lastSegment) {
+					freeSegments.add(next);
+					break;
+				}
+				
+				current = next;
+				segmentIndex++;
+				
+			}
+			
+			if (orderedSink) {
+				outputBytes += writeOrdered(inFlight, sink, freeSegments, permits, inputSize, outputSize);
+			} else {
+				while (!inFlight.isEmpty()) {
+					outputBytes += complete(inFlight.poll(), freeSegments);
+				}
+			}
+			
+		} finally {
+			// On failure, let the running segments finish before the caller closes the streams they write to
+			for (var future : inFlight) {
+				try {
+					future.join();
+				} catch (CompletionException e) {
+					log.debug("Discarding segment after failure: {}", e.getCause().getMessage());
+				}
+			}
+			releaseSegments(freeSegments, inputSize, outputSize);
+			segmentPermits.release(permits.held);
+		}
+		
+		return outputBytes;
+		
+	}
+	
+	private CompletableFuture<Segment> submit(Segment segment, long segmentIndex, boolean lastSegment,
+	                                          SegmentCipher segmentCipher, SegmentSink sink, boolean orderedSink) {
+		segment.index = segmentIndex;
+		return CompletableFuture.supplyAsync(() ->
+			processSegment(segment, lastSegment, segmentCipher, sink, orderedSink), cipherPool);
+	}
+	
+	@SneakyThrows
+	private static Segment processSegment(Segment segment, boolean lastSegment, SegmentCipher segmentCipher,
+	                                      SegmentSink sink, boolean orderedSink) {
+		
+		segment.output.clear();
+		segmentCipher.apply(CIPHER.get(), segment.index, lastSegment, segment.input, segment.output);
+		segment.output.flip();
+		
+		if (!orderedSink) sink.write(segment.index, segment.output);
+		
+		return segment;
+		
+	}
+	
+	private static int complete(CompletableFuture<Segment> future, Deque<Segment> freeSegments) {
+		var segment = join(future);
+		freeSegments.add(segment);
+		return segment.output.limit();
+	}
+	
+	// Waits for every segment in flight, gives back the request's permits and the segments it doesn't need, and only
+	// then writes the finished segments in order. They don't count against max.segments while they are written, a
+	// request has at most maxSegmentsInFlight of them. Only the segment read ahead is kept, acquirePermits() to go on
+	@SneakyThrows
+	private long writeOrdered(Deque<CompletableFuture<Segment>> inFlight, SegmentSink sink,
+	                          Deque<Segment> freeSegments, SegmentPermits permits, int inputSize, int outputSize) {
+		
+		var finished = new ArrayDeque<Segment>();
+		while (!inFlight.isEmpty()) {
+			finished.add(join(inFlight.poll()));
+		}
+		
+		releaseSegments(freeSegments, inputSize, outputSize);
+		permits.used -= freeSegments.size() + finished.size();
+		freeSegments.clear();
+		segmentPermits.release(permits.held);
+		permits.held = 0;
+		
+		long outputBytes = 0;
+		for (var segment : finished) {
+			outputBytes += segment.output.limit();
+			sink.write(segment.index, segment.output);
+		}
+		
+		releaseSegments(finished, inputSize, outputSize);
+		
+		return outputBytes;
+		
+	}
+	
+	// The two segments every request needs are taken at once, so requests can't deadlock holding one each
+	@SneakyThrows
+	private void acquirePermits(SegmentPermits permits) {
+		segmentPermits.acquire(2);
+		permits.held = 2;
+	}
+	
+	@SneakyThrows
+	private static Segment join(CompletableFuture<Segment> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			throw e.getCause();
+		}
+	}
+	
+	private boolean tryTakePermit(SegmentPermits permits) {
+		if (!segmentPermits.tryAcquire()) return false;
+		permits.held++;
+		return true;
+	}
+	
+	// Direct buffers are costly to allocate and are only freed by GC, so they are pooled across requests. A new segment
+	// is only taken under a permit the request holds and doesn't use yet
+	private Segment takeSegment(Deque<Segment> freeSegments, SegmentPermits permits, int inputSize, int outputSize) {
+		
+		var segment = freeSegments.poll();
+		if (segment != null) return segment;
+		
+		if (permits.used == permits.held) throw new IllegalStateException("No segment permit left");
+		permits.used++;
+		
+		segment = segmentPool(inputSize, outputSize).poll();
+		if (segment != null) {
+			pooledBytes.addAndGet(-segment.capacity());
+			return segment;
+		}
+		
+		return new Segment(ChannelIO.allocate(inputSize), ChannelIO.allocate(outputSize));
+		
+	}
+	
+	// Segments over the pool's byte budget are left to GC
+	private void releaseSegments(Deque<Segment> freeSegments, int inputSize, int outputSize) {
+		var pool = segmentPool(inputSize, outputSize);
+		for (var segment : freeSegments) {
+			if (pooledBytes.addAndGet(segment.capacity()) > maxPooledBytes) {
+				pooledBytes.addAndGet(-segment.capacity());
+			} else {
+				pool.offer(segment);
+			}
+		}
+	}
+	
+	private Queue<Segment> segmentPool(int inputSize, int outputSize) {
+		return segmentPools.computeIfAbsent(((long) inputSize << 32) | outputSize,
+			sizes -> new ConcurrentLinkedQueue<>());
+	}
+	
+	private static int read(ReadableByteChannel in, Segment segment) throws IOException {
+		segment.input.clear();
+		int bytesRead = ChannelIO.readFully(in, segment.input);
+		segment.input.flip();
+		return bytesRead;
+	}
+	
+	@FunctionalInterface
+	private interface SegmentCipher {
+		int apply(Cipher cipher, long segmentIndex, boolean lastSegment,
+		          ByteBuffer input, ByteBuffer output) throws GeneralSecurityException;
+	}
+	
+	@FunctionalInterface
+	private interface SegmentSink {
+		void write(long segmentIndex, ByteBuffer output) throws IOException;
+	}
+	
+	private static final class Segment {
+		
+		private final ByteBuffer input;
+		private final ByteBuffer output;
+		private long index;
+		
+		private Segment(ByteBuffer input, ByteBuffer output) {
+			this.input = input;
+			this.output = output;
+		}
+		
+		private long capacity() {
+			return input.capacity() + output.capacity();
+		}
+		
+	}
+	
+	// Permits of the shared semaphore a request holds, and how many of them it turned into segments
+	private static final class SegmentPermits {
+		
+		private int held;
+		private int used;
+		
+	}
+	
+}
@@ -1,25 +1,40 @@
 package org.aes.service;
 
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.services.drive.model.Permission;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.aes.dto.FilePermissionGrantDto;
-import org.aes.helper.InternetConnectivityChecker;
+import org.aes.helper.TimeCalculator;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
-import java.time.Duration;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+/*
+ * Shares uploaded files. Permissions are sent as Drive batch requests of up to MAX_BATCH_SIZE each, so a file shared
+ * with 200 recipients takes two round trips instead of 200. Recipients whose permission failed with a rate limit, a
+ * server error or a broken connection are sent again in the next round, the ones that succeeded aren't.
+ */
 @Slf4j
 @RequiredArgsConstructor
 @Service
 public class PermissionGrantService {
 	
+	private static final int MAX_BATCH_SIZE = 100; // Drive's limit of calls per batch request
+	private static final int MAX_GRANT_ROUNDS = 8;
+	private static final long BASE_BACKOFF_TIME = 1000; // 1 Sec
+	private static final long MAX_BACKOFF_TIME = 32000; // 32 Sec
+	
 	private final GoogleDriveService googleDriveService;
+	private final DriveRateLimiter driveRateLimiter;
+	private final DriveConnectivityMonitor driveConnectivityMonitor;
 	
 	@Value("${shared.file.email.message}")
 	private String emailMessage;
@@ -28,24 +43,100 @@ public class PermissionGrantService {
 	@Async
 	public void grantDriveFilePermission(FilePermissionGrantDto filePermissionGrantDto) {
 		
-		while (InternetConnectivityChecker.isDriveApiNonAccessible()) Thread.sleep(Duration.ofSeconds(10));
+		var pendingPermissions = createPermission(filePermissionGrantDto.shareToUsersList());
+		long previousBackoff = 0;
 		
-		var permissionList = createPermission(filePermissionGrantDto.shareToUsersList());
+		for (var round = 1; !pendingPermissions.isEmpty(); round++) {
+			
+			if (round > 1) {
+				previousBackoff = TimeCalculator.calculateRetryDelay(BASE_BACKOFF_TIME, MAX_BACKOFF_TIME,
+					previousBackoff);
+				Thread.sleep(previousBackoff);
+			}
+			
+			var failedPermissions = new ArrayList<Permission>();
+			
+			for (var from = 0; from < pendingPermissions.size(); from += MAX_BATCH_SIZE) {
+				var to = Math.min(from + MAX_BATCH_SIZE, pendingPermissions.size());
+				failedPermissions.addAll(grantBatch(filePermissionGrantDto, pendingPermissions.subList(from, to)));
+			}
+			
+			if (!failedPermissions.isEmpty() && round >= MAX_GRANT_ROUNDS) {
+				log.error("Couldn't grant permission on {} to {} recipients after {} rounds",
+					filePermissionGrantDto.fileId(), failedPermissions.size(), round);
+				return;
+			}
+			
+			pendingPermissions = failedPermissions;
+			
+		}
 		
-		for (var permission : permissionList) {
+	}
+	
+	// Sends one batch request and returns the permissions worth sending again. Every call in the batch counts against
+	// the quota, so it takes a token of the shared limiter per permission
+	@SneakyThrows
+	private List<Permission> grantBatch(FilePermissionGrantDto filePermissionGrantDto, List<Permission> permissions) {
+		
+		var userId = filePermissionGrantDto.userId();
+		var drive = googleDriveService.getDrive(userId);
+		var batchRequest = drive.batch();
+		var failedPermissions = new ArrayList<Permission>();
+		
+		driveConnectivityMonitor.awaitAvailable();
+		
+		for (var permission : permissions) {
+			
+			driveRateLimiter.acquire(userId);
 			
-			var executedPermission = googleDriveService.getDrive()
-				.permissions()
+			drive.permissions()
 				.create(filePermissionGrantDto.fileId(), permission)
 				.setEmailMessage(emailMessage)
-				.execute();
-			
-			log.debug("Permission Granted to: {}, with permission ID: {}",
-				permission.getEmailAddress(),
-				executedPermission.getId());
+				.queue(batchRequest, new JsonBatchCallback<>() {
+					
+					@Override
+					public void onSuccess(Permission executedPermission, HttpHeaders responseHeaders) {
+						driveRateLimiter.onSuccess(userId);
+						log.debug("Permission Granted to: {}, with permission ID: {}",
+							permission.getEmailAddress(),
+							executedPermission.getId());
+					}
+					
+					@Override
+					public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+						
+						var reason = error.getErrors() == null || error.getErrors().isEmpty()
+							? error.getMessage()
+							: error.getErrors().getFirst().getReason();
+						var rateLimit = DriveRateLimiter.classify(error.getCode(), reason);
+						
+						if (rateLimit != null) {
+							driveRateLimiter.onRateLimited(userId, rateLimit);
+							failedPermissions.add(permission);
+						} else if (error.getCode() >= 500) {
+							failedPermissions.add(permission);
+						} else {
+							// E.g. an address without a Google account, sending it again won't help
+							log.error("Couldn't grant permission to {}: {}", permission.getEmailAddress(),
+								error.getMessage());
+						}
+						
+					}
+					
+				});
 			
 		}
 		
+		try {
+			batchRequest.execute();
+		} catch (IOException e) { // Drive couldn't be reached, none of the batch is known to have gone through
+			log.debug("Drive unreachable granting permissions: {}", e.getMessage());
+			driveConnectivityMonitor.recordFailure();
+			return permissions;
+		}
+		
+		return failedPermissions;
+		
 	}
 	
 	private List<Permission> createPermission(List<String> shareToList) {
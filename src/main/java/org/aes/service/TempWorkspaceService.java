@@ -0,0 +1,290 @@
+package org.aes.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Temp disk space of the requests. Every request that writes files gets its own workspace directory and reserves the
+ * bytes it is going to write against max.bytes up front. When the budget is used up requests wait in arrival order for
+ * up to admission.timeout and are then turned away, instead of all of them failing once the volume is full. Requests
+ * that only learn their size while writing extend their reservation as they go and fail once it doesn't fit. A
+ * workspace is released as a whole, its directory is deleted and its reservation returned exactly once. Workspaces left
+ * by a previous run are adopted on startup, so files of uploads that are resumed still count against the budget.
+ * Requests wait on a ReentrantLock's condition, a monitor wait would pin the carrier of their virtual thread.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Service
+public class TempWorkspaceService {
+	
+	public static final String WORKSPACE_PREFIX = "Workspace-";
+	private static final Path TEMP_FILE_PATH = Path.of(System.getProperty("java.io.tmpdir"));
+	
+	private final MeterRegistry meterRegistry;
+	
+	@Value("${temp.workspace.max.bytes}")
+	private long maxBytes;
+	
+	@Value("${temp.workspace.admission.timeout}")
+	private long admissionTimeout; // In Milli Seconds
+	
+	private final Map<Path, Workspace> workspaces = new ConcurrentHashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition spaceFreed = lock.newCondition();
+	// Guarded by lock
+	private final Deque<Object> admissionQueue = new ArrayDeque<>();
+	private long reservedBytes;
+	
+	private Counter rejectedCounter;
+	private Timer admissionTimer;
+	
+	@PostConstruct
+	public void init() {
+		Gauge.builder("temp.workspace.reserved", this, TempWorkspaceService::getReservedBytes)
+			.baseUnit("bytes")
+			.description("Temp disk space reserved by workspaces")
+			.register(meterRegistry);
+		Gauge.builder("temp.workspace.used", this, TempWorkspaceService::getUsedBytes)
+			.baseUnit("bytes")
+			.description("Temp disk space taken by the files in workspaces")
+			.register(meterRegistry);
+		Gauge.builder("temp.workspace.active", workspaces, Map::size)
+			.description("Workspaces not released yet")
+			.register(meterRegistry);
+		rejectedCounter = Counter.builder("temp.workspace.rejected")
+			.description("Requests turned away for lack of temp disk space")
+			.register(meterRegistry);
+		admissionTimer = Timer.builder("temp.workspace.admission.wait")
+			.description("Time requests waited for temp disk space")
+			.register(meterRegistry);
+		adoptWorkspaces();
+	}
+	
+	// Blocks until bytes fit into the budget, for at most admission.timeout
+	@SneakyThrows
+	public Workspace reserve(long bytes) {
+		
+		if (bytes > maxBytes) {
+			rejectedCounter.increment();
+			throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "The file is too large to be processed");
+		}
+		
+		var start = System.nanoTime();
+		var deadline = start + TimeUnit.MILLISECONDS.toNanos(admissionTimeout);
+		var ticket = new Object();
+		
+		lock.lock();
+		try {
+			admissionQueue.addLast(ticket);
+			try {
+				// Only the first in line may take space, so a large request isn't starved by a stream of small ones
+				while (admissionQueue.peekFirst() != ticket || reservedBytes + bytes > maxBytes) {
+					var remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						rejectedCounter.increment();
+						throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+							"Not enough temporary disk space, try again later");
+					}
+					spaceFreed.awaitNanos(remaining);
+				}
+				reservedBytes += bytes;
+			} finally {
+				admissionQueue.remove(ticket);
+				spaceFreed.signalAll(); // The next in line may fit now
+			}
+		} finally {
+			lock.unlock();
+		}
+		
+		admissionTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		
+		var directory = TEMP_FILE_PATH.resolve(WORKSPACE_PREFIX + UUID.randomUUID());
+		var workspace = new Workspace(directory, bytes);
+		
+		try {
+			Files.createDirectory(directory);
+		} catch (IOException e) {
+			returnReservation(bytes);
+			throw e;
+		}
+		
+		workspaces.put(directory, workspace);
+		return workspace;
+		
+	}
+	
+	// Doesn't wait, the request already holds space other requests may be waiting for
+	public void extend(Workspace workspace, long bytes) {
+		
+		lock.lock();
+		try {
+			
+			if (workspace.released.get()) throw new IllegalStateException("Workspace is already released");
+			
+			if (reservedBytes + bytes > maxBytes) {
+				rejectedCounter.increment();
+				throw new ResponseStatusException(HttpStatus.INSUFFICIENT_STORAGE,
+					"Not enough temporary disk space to process the file");
+			}
+			
+			reservedBytes += bytes;
+			workspace.reservedBytes += bytes;
+			
+		} finally {
+			lock.unlock();
+		}
+		
+	}
+	
+	public void release(Workspace workspace) {
+		if (workspace != null) release(workspace.directory());
+	}
+	
+	// Releases the workspace that is or holds path. Returns the bytes freed, or -1 if path isn't in a workspace
+	public long release(Path path) {
+		
+		var workspace = workspaces.get(path);
+		if (workspace == null && path.getParent() != null) workspace = workspaces.get(path.getParent());
+		if (workspace == null) return -1;
+		
+		if (!workspace.released.compareAndSet(false, true)) return 0;
+		
+		var usedBytes = workspace.usedBytes();
+		try {
+			FileSystemUtils.deleteRecursively(workspace.directory());
+		} catch (IOException e) {
+			log.warn("Couldn't delete workspace {}", workspace.directory(), e);
+		}
+		
+		workspaces.remove(workspace.directory());
+		returnReservation(workspace);
+		
+		return usedBytes;
+		
+	}
+	
+	public long getReservedBytes() {
+		lock.lock();
+		try {
+			return reservedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public long getUsedBytes() {
+		return workspaces.values().stream().mapToLong(Workspace::usedBytes).sum();
+	}
+	
+	private void returnReservation(long bytes) {
+		lock.lock();
+		try {
+			reservedBytes -= bytes;
+			spaceFreed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// Read under the lock, so an extend that is still running is returned as well
+	private void returnReservation(Workspace workspace) {
+		lock.lock();
+		try {
+			returnReservation(workspace.reservedBytes);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// Their reservation is what they take on disk, which may exceed the budget for a while after a restart
+	private void adoptWorkspaces() {
+		
+		try (var paths = Files.list(TEMP_FILE_PATH)) {
+			paths.filter(path -> Files.isDirectory(path) && path.getFileName().toString().startsWith(WORKSPACE_PREFIX))
+				.forEach(directory -> {
+					var workspace = new Workspace(directory, sizeOf(directory));
+					workspaces.put(directory, workspace);
+					lock.lock();
+					try {
+						reservedBytes += workspace.reservedBytes();
+					} finally {
+						lock.unlock();
+					}
+				});
+		} catch (IOException e) {
+			log.warn("Couldn't look for workspaces in {}", TEMP_FILE_PATH, e);
+		}
+		
+		log.debug("Adopted {} workspaces holding {} Bytes", workspaces.size(), getReservedBytes());
+		
+	}
+	
+	private static long sizeOf(Path directory) {
+		try (var paths = Files.walk(directory)) {
+			return paths.filter(Files::isRegularFile).mapToLong(path -> {
+				try {
+					return Files.size(path);
+				} catch (IOException e) {
+					return 0; // Deleted while walking
+				}
+			}).sum();
+		} catch (IOException | UncheckedIOException e) {
+			return 0; // Released while walking
+		}
+	}
+	
+	public static final class Workspace {
+		
+		private final Path directory;
+		private volatile long reservedBytes; // Changed holding the service's lock
+		private final AtomicBoolean released = new AtomicBoolean();
+		
+		private Workspace(Path directory, long reservedBytes) {
+			this.directory = directory;
+			this.reservedBytes = reservedBytes;
+		}
+		
+		public Path directory() {
+			return directory;
+		}
+		
+		public long reservedBytes() {
+			return reservedBytes;
+		}
+		
+		public Path resolve(String fileName) {
+			return directory.resolve(fileName);
+		}
+		
+		private long usedBytes() {
+			return sizeOf(directory);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,203 @@
+package org.aes.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.aes.dto.GDriveFileDto;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/*
+ * Decides when uploads start, so one user's pile of large files can't take the whole uplink. At most maxConcurrent
+ * uploads run at a time. Waiting uploads are queued per user and users take turns in weighted round robin, a user with
+ * weight n starts up to n uploads per turn. With smallFirst a user's smaller files start before their bigger ones.
+ * Uploads of files on disk and pipelined uploads of streams still being encrypted share the same slots. A pipelined
+ * upload holds up a live response while it waits, so it only takes a slot that is free right away and is never queued.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Service
+public class UploadScheduler {
+	
+	private static final int DEFAULT_USER_WEIGHT = 1;
+	
+	private final FileUploadService fileUploadService;
+	private final MeterRegistry meterRegistry;
+	
+	@Value("${gdrive.upload.max.concurrent}")
+	private int maxConcurrentUploads;
+	
+	@Value("${gdrive.upload.small.first}")
+	private boolean smallFirst;
+	
+	@Value("#{${gdrive.upload.user.weights}}")
+	private Map<String, Integer> userWeights;
+	
+	// Guarded by this
+	private final Map<String, UserQueue> userQueues = new HashMap<>();
+	private final Deque<UserQueue> turns = new ArrayDeque<>(); // Users with waiting uploads, the first one's turn is now
+	private int queuedUploads;
+	private int activeUploads;
+	private long sequence;
+	
+	private Timer waitTimer;
+	
+	@PostConstruct
+	public void init() {
+		Gauge.builder("gdrive.upload.queue.depth", this, UploadScheduler::getQueuedUploads)
+			.description("Uploads waiting for a free slot")
+			.register(meterRegistry);
+		Gauge.builder("gdrive.upload.active", this, UploadScheduler::getActiveUploads)
+			.description("Uploads in progress")
+			.register(meterRegistry);
+		waitTimer = Timer.builder("gdrive.upload.queue.wait")
+			.description("Time uploads waited for a free slot")
+			.register(meterRegistry);
+	}
+	
+	public void submit(GDriveFileDto gDriveFileDto) {
+		submit(gDriveFileDto.userId(), gDriveFileDto.file().getName(), gDriveFileDto.file().length(),
+			() -> fileUploadService.uploadFileChunks(gDriveFileDto));
+	}
+	
+	// upload starts the upload once it has a slot and returns a future that completes when the upload is over
+	public void submit(String userId, String fileName, long size, Supplier<CompletableFuture<Void>> upload) {
+		
+		List<PendingUpload> startable;
+		
+		synchronized (this) {
+			var userQueue = userQueues.computeIfAbsent(userId, this::newUserQueue);
+			if (userQueue.pending.isEmpty()) turns.addLast(userQueue);
+			userQueue.pending.add(new PendingUpload(fileName, upload, size, sequence++, System.nanoTime()));
+			queuedUploads++;
+			startable = takeStartable();
+		}
+		
+		startable.forEach(this::start);
+		
+	}
+	
+	// Starts upload right away if a slot is free and no upload is waiting for one, otherwise returns false and doesn't
+	// queue it. An exception of upload is thrown once its slot is handed back
+	public boolean tryStart(String userId, String fileName, long size, Supplier<CompletableFuture<Void>> upload) {
+		
+		synchronized (this) {
+			if (activeUploads >= maxConcurrentUploads || queuedUploads > 0) return false;
+			activeUploads++;
+		}
+		
+		CompletableFuture<Void> finished;
+		try {
+			finished = upload.get();
+		} catch (Throwable e) { // Also checked exceptions thrown sneakily, rethrown as they are
+			onFinished();
+			throw e;
+		}
+		
+		log.debug("Started upload of {} for {} ({} Bytes) without queuing it", fileName, userId, size);
+		finished.whenCompleteAsync((result, e) -> onFinished());
+		return true;
+		
+	}
+	
+	public synchronized int getQueuedUploads() {
+		return queuedUploads;
+	}
+	
+	public synchronized int getActiveUploads() {
+		return activeUploads;
+	}
+	
+	// Takes uploads off the queues while there are free slots, must be called holding the lock
+	private List<PendingUpload> takeStartable() {
+		
+		var startable = new ArrayList<PendingUpload>();
+		
+		while (activeUploads < maxConcurrentUploads && !turns.isEmpty()) {
+			
+			var userQueue = turns.peekFirst();
+			startable.add(userQueue.pending.poll());
+			queuedUploads--;
+			activeUploads++;
+			
+			if (userQueue.pending.isEmpty()) {
+				turns.pollFirst();
+				userQueues.remove(userQueue.userId);
+			} else if (++userQueue.startedThisTurn >= userQueue.weight) {
+				userQueue.startedThisTurn = 0;
+				turns.addLast(turns.pollFirst());
+			}
+			
+		}
+		
+		return startable;
+		
+	}
+	
+	private void start(PendingUpload pendingUpload) {
+		
+		waitTimer.record(System.nanoTime() - pendingUpload.queuedAt(), TimeUnit.NANOSECONDS);
+		
+		CompletableFuture<Void> finished;
+		try {
+			finished = pendingUpload.upload().get();
+		} catch (Exception e) {
+			log.error("Couldn't start upload of {}", pendingUpload.fileName(), e);
+			finished = CompletableFuture.completedFuture(null);
+		}
+		
+		// Async, so an upload that finishes right away doesn't start the next one from inside this call
+		finished.whenCompleteAsync((result, e) -> onFinished());
+		
+	}
+	
+	private void onFinished() {
+		
+		List<PendingUpload> startable;
+		
+		synchronized (this) {
+			activeUploads--;
+			startable = takeStartable();
+		}
+		
+		startable.forEach(this::start);
+		
+	}
+	
+	private UserQueue newUserQueue(String userId) {
+		var weight = Math.max(1, userWeights.getOrDefault(userId, DEFAULT_USER_WEIGHT));
+		Comparator<PendingUpload> order = smallFirst
+			? Comparator.comparingLong(PendingUpload::size).thenComparingLong(PendingUpload::sequence)
+			: Comparator.comparingLong(PendingUpload::sequence);
+		return new UserQueue(userId, weight, new PriorityQueue<>(order));
+	}
+	
+	private static final class UserQueue {
+		
+		private final String userId;
+		private final int weight;
+		private final Queue<PendingUpload> pending;
+		private int startedThisTurn;
+		
+		private UserQueue(String userId, int weight, Queue<PendingUpload> pending) {
+			this.userId = userId;
+			this.weight = weight;
+			this.pending = pending;
+		}
+		
+	}
+	
+	private record PendingUpload(String fileName, Supplier<CompletableFuture<Void>> upload, long size, long sequence,
+	                             long queuedAt) {
+	
+	}
+	
+}
@@ -4,3 +4,11 @@ CREATE TABLE IF NOT EXISTS persistent_logins (
     token VARCHAR(64) NOT NULL,
     last_used TIMESTAMP NOT NULL
 );
+
+CREATE TABLE IF NOT EXISTS oauth_credential (
+    store_id VARCHAR(64) NOT NULL,
+    user_id VARCHAR(255) NOT NULL,
+    value BYTEA NOT NULL,
+    updated_at TIMESTAMP NOT NULL,
+    PRIMARY KEY (store_id, user_id)
+);
@@ -0,0 +1,112 @@
+package org.aes.helper;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkRingTests {
+	
+	private static final int CHUNK_SIZE = 4;
+	
+	@Test
+	void handsOutChunksInStreamOrder() throws IOException {
+		
+		var chunkRing = new ChunkRing(CHUNK_SIZE, 4);
+		chunkRing.write(ByteBuffer.wrap(new byte[] {0, 1, 2, 3, 4, 5}));
+		chunkRing.close();
+		
+		var first = chunkRing.take();
+		assertEquals(0, first.offset());
+		assertEquals(CHUNK_SIZE, first.end());
+		assertFalse(first.last());
+		assertEquals(3, first.buffer().get(3));
+		
+		var last = chunkRing.take();
+		assertEquals(CHUNK_SIZE, last.offset());
+		assertEquals(6, last.end());
+		assertTrue(last.last());
+		assertEquals(5, last.buffer().get(1));
+		
+	}
+	
+	@Test
+	void closesStreamEndingOnChunkBoundaryWithEmptyLastChunk() throws IOException {
+		
+		var chunkRing = new ChunkRing(CHUNK_SIZE, 4);
+		chunkRing.write(ByteBuffer.wrap(new byte[CHUNK_SIZE]));
+		chunkRing.close();
+		
+		assertFalse(chunkRing.take().last());
+		var last = chunkRing.take();
+		assertTrue(last.last());
+		assertEquals(CHUNK_SIZE, last.offset());
+		assertEquals(0, last.buffer().limit());
+		
+	}
+	
+	@Test
+	void blocksProducerUntilChunkIsReleased() throws Exception {
+		
+		var chunkRing = new ChunkRing(CHUNK_SIZE, 2);
+		chunkRing.write(ByteBuffer.wrap(new byte[2 * CHUNK_SIZE])); // Takes every buffer
+		
+		var write = writeAsync(chunkRing, new byte[1]);
+		assertThrows(TimeoutException.class, () -> write.get(200, TimeUnit.MILLISECONDS));
+		
+		// A chunk taken but not released still holds its buffer, its bytes may have to be sent again
+		var first = chunkRing.take();
+		assertThrows(TimeoutException.class, () -> write.get(200, TimeUnit.MILLISECONDS));
+		
+		chunkRing.release(first);
+		write.get(5, TimeUnit.SECONDS);
+		
+	}
+	
+	@Test
+	void abortWakesBlockedProducerAndDropsTheRest() throws Exception {
+		
+		var chunkRing = new ChunkRing(CHUNK_SIZE, 1);
+		chunkRing.write(ByteBuffer.wrap(new byte[CHUNK_SIZE]));
+		
+		var write = writeAsync(chunkRing, new byte[3 * CHUNK_SIZE]);
+		assertThrows(TimeoutException.class, () -> write.get(200, TimeUnit.MILLISECONDS));
+		
+		chunkRing.abort();
+		
+		assertEquals(3 * CHUNK_SIZE, write.get(5, TimeUnit.SECONDS));
+		assertEquals(CHUNK_SIZE, chunkRing.write(ByteBuffer.wrap(new byte[CHUNK_SIZE])));
+		
+	}
+	
+	@Test
+	void failedProducerFailsConsumer() throws IOException {
+		
+		var chunkRing = new ChunkRing(CHUNK_SIZE, 2);
+		chunkRing.write(ByteBuffer.wrap(new byte[CHUNK_SIZE]));
+		var cause = new IllegalStateException("Encryption failed");
+		chunkRing.fail(cause);
+		
+		assertFalse(chunkRing.take().last());
+		var e = assertThrows(IOException.class, chunkRing::take);
+		assertSame(cause, e.getCause());
+		assertFalse(chunkRing.isOpen());
+		
+	}
+	
+	private static CompletableFuture<Integer> writeAsync(ChunkRing chunkRing, byte[] bytes) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return chunkRing.write(ByteBuffer.wrap(bytes));
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+	
+}
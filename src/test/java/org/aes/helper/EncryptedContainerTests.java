@@ -0,0 +1,286 @@
+package org.aes.helper;
+
+import org.aes.service.ParallelCipherService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.http.HttpRange;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EncryptedContainerTests {
+	
+	// Small segments, so a few bytes already span several of them
+	private static final int SEGMENT_SIZE = 64;
+	private static final int TAG_LENGTH = 128;
+	private static final int CIPHERTEXT_SEGMENT_SIZE = StreamingAesGcm.ciphertextSegmentSize(SEGMENT_SIZE, TAG_LENGTH);
+	
+	private ParallelCipherService parallelCipherService;
+	private SecretKey secretKey;
+	
+	@BeforeEach
+	void setUp() throws Exception {
+		parallelCipherService = new ParallelCipherService();
+		ReflectionTestUtils.setField(parallelCipherService, "parallelism", 2);
+		ReflectionTestUtils.setField(parallelCipherService, "maxSegments", 8);
+		ReflectionTestUtils.setField(parallelCipherService, "maxPooledBytes", 1024 * 1024L);
+		parallelCipherService.init();
+		var keyGenerator = KeyGenerator.getInstance("AES");
+		keyGenerator.init(256);
+		secretKey = keyGenerator.generateKey();
+	}
+	
+	@AfterEach
+	void tearDown() {
+		parallelCipherService.shutdown();
+	}
+	
+	@ParameterizedTest
+	@ValueSource(ints = {0, 1, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, 3 * SEGMENT_SIZE, 3 * SEGMENT_SIZE + 7})
+	void roundTrip(int plaintextSize) throws IOException {
+		
+		var plaintext = randomBytes(plaintextSize);
+		var container = encrypt(plaintext, "file.txt");
+		var header = EncryptedContainer.readHeader(new ByteArrayInputStream(container));
+		
+		assertEquals("file.txt", header.fileName());
+		assertEquals(SEGMENT_SIZE, header.segmentSize());
+		assertEquals(plaintextSize, EncryptedContainer.plaintextSize(header, container.length));
+		assertEquals(Math.max(1, (plaintextSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE),
+			EncryptedContainer.segmentCount(header, container.length));
+		assertArrayEquals(plaintext, decrypt(container));
+		
+	}
+	
+	@Test
+	void footerMatchesTheBody() throws IOException {
+		
+		var container = encrypt(randomBytes(3 * SEGMENT_SIZE + 7), "file.txt");
+		var footer = ByteBuffer.wrap(container, container.length - EncryptedContainer.FOOTER_LENGTH,
+			EncryptedContainer.FOOTER_LENGTH);
+		
+		assertEquals(3 * SEGMENT_SIZE + 7, footer.getLong());
+		assertEquals(4, footer.getInt());
+		
+	}
+	
+	@Test
+	void readHeaderOnlyKeepsTheFileName() throws IOException {
+		var container = encrypt(randomBytes(1), "../../etc/passwd");
+		assertEquals("passwd", EncryptedContainer.readHeader(new ByteArrayInputStream(container)).fileName());
+	}
+	
+	@Test
+	void rejectsTamperedSegment() throws IOException {
+		
+		var container = encrypt(randomBytes(3 * SEGMENT_SIZE), "file.txt");
+		var headerLength = headerLength(container);
+		container[headerLength + CIPHERTEXT_SEGMENT_SIZE + 5] ^= 1;
+		
+		assertThrows(AEADBadTagException.class, () -> decrypt(container));
+		
+	}
+	
+	@Test
+	void rejectsTamperedHeader() throws IOException {
+		
+		// The file name is authenticated as part of the header, changing it keeps the header readable
+		var container = encrypt(randomBytes(SEGMENT_SIZE), "file.txt");
+		var headerLength = headerLength(container);
+		container[headerLength - 1] = 'X';
+		
+		assertEquals("file.txX", EncryptedContainer.readHeader(new ByteArrayInputStream(container)).fileName());
+		assertThrows(AEADBadTagException.class, () -> decrypt(container));
+		
+	}
+	
+	@Test
+	void rejectsTruncationAtSegmentBoundary() throws IOException {
+		
+		var container = encrypt(randomBytes(3 * SEGMENT_SIZE + 7), "file.txt");
+		
+		// Without the final segment the one before it is taken as the last, but it wasn't sealed as the last one
+		var truncated = truncate(container, 3 * CIPHERTEXT_SEGMENT_SIZE);
+		
+		assertThrows(AEADBadTagException.class, () -> decrypt(truncated));
+		
+	}
+	
+	@Test
+	void rejectsTruncationInsideSegment() throws IOException {
+		
+		var container = encrypt(randomBytes(2 * SEGMENT_SIZE), "file.txt");
+		var truncated = truncate(container, CIPHERTEXT_SEGMENT_SIZE + 10);
+		
+		assertThrows(AEADBadTagException.class, () -> decrypt(truncated));
+		
+	}
+	
+	@Test
+	void rejectsReorderedSegments() throws IOException {
+		
+		var container = encrypt(randomBytes(3 * SEGMENT_SIZE), "file.txt");
+		var first = headerLength(container);
+		var second = first + CIPHERTEXT_SEGMENT_SIZE;
+		
+		var segment = Arrays.copyOfRange(container, first, second);
+		System.arraycopy(container, second, container, first, CIPHERTEXT_SEGMENT_SIZE);
+		System.arraycopy(segment, 0, container, second, CIPHERTEXT_SEGMENT_SIZE);
+		
+		assertThrows(AEADBadTagException.class, () -> decrypt(container));
+		
+	}
+	
+	@ParameterizedTest
+	@CsvSource({"0, 0", "0, 63", "63, 64", "64, 127", "1, 197", "0, 198", "192, 198", "198, 198"})
+	void decryptsRange(long rangeStart, long rangeEnd) throws IOException {
+		
+		// Three full segments and a short final one
+		var plaintext = randomBytes(3 * SEGMENT_SIZE + 7);
+		var container = encrypt(plaintext, "file.txt");
+		
+		assertArrayEquals(Arrays.copyOfRange(plaintext, (int) rangeStart, (int) rangeEnd + 1),
+			decryptRange(container, HttpRange.createByteRange(rangeStart, rangeEnd)));
+		
+	}
+	
+	@Test
+	void decryptsLastByteOfFullFinalSegment() throws IOException {
+		
+		var plaintext = randomBytes(3 * SEGMENT_SIZE);
+		var container = encrypt(plaintext, "file.txt");
+		var header = EncryptedContainer.readHeader(new ByteArrayInputStream(container));
+		var segmentRange = EncryptedContainer.segmentRange(header, container.length, plaintext.length - 1,
+			plaintext.length - 1);
+		
+		assertEquals(2, segmentRange.firstSegment());
+		assertTrue(segmentRange.includesFinalSegment());
+		assertEquals(CIPHERTEXT_SEGMENT_SIZE, segmentRange.ciphertextLength());
+		assertArrayEquals(Arrays.copyOfRange(plaintext, plaintext.length - 1, plaintext.length),
+			decryptRange(container, HttpRange.createByteRange(plaintext.length - 1)));
+		
+	}
+	
+	@Test
+	void onlyReadsTheSegmentsOfTheRange() throws IOException {
+		
+		var container = encrypt(randomBytes(3 * SEGMENT_SIZE + 7), "file.txt");
+		var header = EncryptedContainer.readHeader(new ByteArrayInputStream(container));
+		var segmentRange = EncryptedContainer.segmentRange(header, container.length, SEGMENT_SIZE + 3,
+			2 * SEGMENT_SIZE + 1);
+		
+		assertEquals(1, segmentRange.firstSegment());
+		assertFalse(segmentRange.includesFinalSegment());
+		assertEquals(CIPHERTEXT_SEGMENT_SIZE, segmentRange.ciphertextOffset());
+		assertEquals(2 * CIPHERTEXT_SEGMENT_SIZE, segmentRange.ciphertextLength());
+		assertEquals(3, segmentRange.skip());
+		
+	}
+	
+	@ParameterizedTest
+	@ValueSource(ints = {1, 7, 10, SEGMENT_SIZE + 10, 3 * SEGMENT_SIZE + 7, 1000})
+	void decryptsSuffixRange(int suffixLength) throws IOException {
+		
+		var plaintext = randomBytes(3 * SEGMENT_SIZE + 7);
+		var container = encrypt(plaintext, "file.txt");
+		var from = Math.max(0, plaintext.length - suffixLength);
+		
+		assertArrayEquals(Arrays.copyOfRange(plaintext, from, plaintext.length),
+			decryptRange(container, HttpRange.createSuffixRange(suffixLength)));
+		
+	}
+	
+	@Test
+	void rejectsTamperedSegmentInRange() throws IOException {
+		
+		var container = encrypt(randomBytes(3 * SEGMENT_SIZE + 7), "file.txt");
+		container[headerLength(container) + 3 * CIPHERTEXT_SEGMENT_SIZE] ^= 1;
+		
+		assertThrows(AEADBadTagException.class, () -> decryptRange(container, HttpRange.createSuffixRange(1)));
+		
+	}
+	
+	private byte[] encrypt(byte[] plaintext, String fileName) throws IOException {
+		
+		var header = EncryptedContainer.newHeader("key-id", "kek", new byte[40], StreamingAesGcm.generateNoncePrefix(),
+			SEGMENT_SIZE, TAG_LENGTH, fileName, false);
+		var out = new ByteArrayOutputStream();
+		var channel = Channels.newChannel(out);
+		
+		ChannelIO.writeFully(channel, ByteBuffer.wrap(header.encoded()));
+		var ciphertextSize = parallelCipherService.encrypt(Channels.newChannel(new ByteArrayInputStream(plaintext)),
+			channel, secretKey, header.noncePrefix(), SEGMENT_SIZE, TAG_LENGTH, header.encoded());
+		ChannelIO.writeFully(channel, EncryptedContainer.footer(ciphertextSize, SEGMENT_SIZE, TAG_LENGTH));
+		
+		return out.toByteArray();
+		
+	}
+	
+	private byte[] decrypt(byte[] container) throws IOException {
+		
+		var in = new ByteArrayInputStream(container);
+		var header = EncryptedContainer.readHeader(in);
+		var out = new ByteArrayOutputStream();
+		
+		parallelCipherService.decrypt(
+			ChannelIO.limit(Channels.newChannel(in), EncryptedContainer.ciphertextLength(header, container.length)),
+			Channels.newChannel(out), secretKey, header.noncePrefix(), header.segmentSize(), header.tagLength(),
+			header.encoded());
+		
+		return out.toByteArray();
+		
+	}
+	
+	// Decrypts the range the way a range request on /decrypt does
+	private byte[] decryptRange(byte[] container, HttpRange range) throws IOException {
+		
+		var in = new ByteArrayInputStream(container);
+		var header = EncryptedContainer.readHeader(in);
+		var plaintextSize = EncryptedContainer.plaintextSize(header, container.length);
+		var rangeStart = range.getRangeStart(plaintextSize);
+		var rangeEnd = range.getRangeEnd(plaintextSize);
+		var segmentRange = EncryptedContainer.segmentRange(header, container.length, rangeStart, rangeEnd);
+		var out = new ByteArrayOutputStream();
+		
+		in.skipNBytes(segmentRange.ciphertextOffset());
+		parallelCipherService.decrypt(ChannelIO.limit(Channels.newChannel(in), segmentRange.ciphertextLength()),
+			ChannelIO.slice(Channels.newChannel(out), segmentRange.skip(), rangeEnd - rangeStart + 1),
+			segmentRange.firstSegment(), segmentRange.includesFinalSegment(), secretKey, header.noncePrefix(),
+			header.segmentSize(), header.tagLength(), header.encoded());
+		
+		return out.toByteArray();
+		
+	}
+	
+	private static int headerLength(byte[] container) throws IOException {
+		return EncryptedContainer.readHeader(new ByteArrayInputStream(container)).length();
+	}
+	
+	// Keeps bodyLength bytes of the segments, decrypting only relies on the length of the footer
+	private static byte[] truncate(byte[] container, int bodyLength) throws IOException {
+		var truncated = Arrays.copyOf(container, headerLength(container) + bodyLength);
+		return Arrays.copyOf(truncated, truncated.length + EncryptedContainer.FOOTER_LENGTH);
+	}
+	
+	private static byte[] randomBytes(int length) {
+		var bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+	
+}
@@ -0,0 +1,234 @@
+package org.aes.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadSchedulerTests {
+	
+	// Uploads that have started, in the order they started
+	private final BlockingQueue<String> started = new LinkedBlockingQueue<>();
+	private final Map<String, CompletableFuture<Void>> running = new ConcurrentHashMap<>();
+	
+	@Test
+	void usersTakeTurnsByWeight() throws InterruptedException {
+		
+		var uploadScheduler = newUploadScheduler(1, false, Map.of("heavy", 2));
+		submit(uploadScheduler, "other", "blocker", 1);
+		assertEquals("blocker", nextStarted());
+		
+		submit(uploadScheduler, "heavy", "heavy-1", 1);
+		submit(uploadScheduler, "heavy", "heavy-2", 1);
+		submit(uploadScheduler, "heavy", "heavy-3", 1);
+		submit(uploadScheduler, "light", "light-1", 1);
+		submit(uploadScheduler, "light", "light-2", 1);
+		
+		assertEquals(List.of("heavy-1", "heavy-2", "light-1", "heavy-3", "light-2"),
+			finishOneByOne("blocker", 5));
+		
+	}
+	
+	@Test
+	void smallFirstStartsSmallerFilesOfUserFirst() throws InterruptedException {
+		
+		var uploadScheduler = newUploadScheduler(1, true, Map.of());
+		submit(uploadScheduler, "user", "blocker", 1);
+		assertEquals("blocker", nextStarted());
+		
+		submit(uploadScheduler, "user", "large", 300);
+		submit(uploadScheduler, "user", "small", 100);
+		submit(uploadScheduler, "user", "medium", 200);
+		submit(uploadScheduler, "user", "small-too", 100);
+		
+		assertEquals(List.of("small", "small-too", "medium", "large"), finishOneByOne("blocker", 4));
+		
+	}
+	
+	@Test
+	void startsInSubmissionOrderWithoutSmallFirst() throws InterruptedException {
+		
+		var uploadScheduler = newUploadScheduler(1, false, Map.of());
+		submit(uploadScheduler, "user", "blocker", 1);
+		assertEquals("blocker", nextStarted());
+		
+		submit(uploadScheduler, "user", "large", 300);
+		submit(uploadScheduler, "user", "small", 100);
+		
+		assertEquals(List.of("large", "small"), finishOneByOne("blocker", 2));
+		
+	}
+	
+	@Test
+	void runsAtMostMaxConcurrentUploads() throws InterruptedException {
+		
+		var uploadScheduler = newUploadScheduler(2, false, Map.of());
+		submit(uploadScheduler, "a", "a-1", 1);
+		submit(uploadScheduler, "b", "b-1", 1);
+		submit(uploadScheduler, "c", "c-1", 1);
+		
+		assertEquals("a-1", nextStarted());
+		assertEquals("b-1", nextStarted());
+		assertNull(started.poll(100, TimeUnit.MILLISECONDS));
+		assertEquals(2, uploadScheduler.getActiveUploads());
+		assertEquals(1, uploadScheduler.getQueuedUploads());
+		
+		running.get("b-1").complete(null);
+		assertEquals("c-1", nextStarted());
+		assertEquals(0, uploadScheduler.getQueuedUploads());
+		
+	}
+	
+	@Test
+	void releasesSlotWhenUploadCompletes() throws InterruptedException {
+		
+		var uploadScheduler = newUploadScheduler(1, false, Map.of());
+		submit(uploadScheduler, "user", "first", 1);
+		assertEquals("first", nextStarted());
+		
+		running.get("first").complete(null);
+		awaitActiveUploads(uploadScheduler, 0);
+		
+		submit(uploadScheduler, "user", "second", 1);
+		assertEquals("second", nextStarted());
+		
+	}
+	
+	@Test
+	void releasesSlotWhenUploadFails() throws InterruptedException {
+		
+		var uploadScheduler = newUploadScheduler(1, false, Map.of());
+		submit(uploadScheduler, "user", "failing", 1);
+		submit(uploadScheduler, "user", "next", 1);
+		assertEquals("failing", nextStarted());
+		
+		running.get("failing").completeExceptionally(new IllegalStateException("Upload failed"));
+		assertEquals("next", nextStarted());
+		
+	}
+	
+	@Test
+	void releasesSlotWhenUploadCantStart() throws InterruptedException {
+		
+		var uploadScheduler = newUploadScheduler(1, false, Map.of());
+		uploadScheduler.submit("user", "broken", 1, () -> {
+			throw new IllegalStateException("Upload can't start");
+		});
+		submit(uploadScheduler, "user", "next", 1);
+		
+		assertEquals("next", nextStarted());
+		
+	}
+	
+	@Test
+	void tryStartTakesFreeSlotRightAway() throws InterruptedException {
+		
+		var uploadScheduler = newUploadScheduler(1, false, Map.of());
+		assertTrue(tryStart(uploadScheduler, "user", "pipelined"));
+		assertEquals("pipelined", started.poll());
+		
+		submit(uploadScheduler, "user", "queued", 1);
+		assertEquals(1, uploadScheduler.getQueuedUploads());
+		
+		running.get("pipelined").complete(null);
+		assertEquals("queued", nextStarted());
+		
+	}
+	
+	@Test
+	void tryStartDoesntQueueWithoutFreeSlot() throws InterruptedException {
+		
+		var uploadScheduler = newUploadScheduler(1, false, Map.of());
+		submit(uploadScheduler, "user", "first", 1);
+		assertEquals("first", nextStarted());
+		
+		assertFalse(tryStart(uploadScheduler, "user", "pipelined"));
+		assertEquals(0, uploadScheduler.getQueuedUploads());
+		
+		running.get("first").complete(null);
+		awaitActiveUploads(uploadScheduler, 0);
+		assertNull(started.poll());
+		
+	}
+	
+	@Test
+	void tryStartHandsSlotBackWhenUploadCantStart() {
+		
+		var uploadScheduler = newUploadScheduler(1, false, Map.of());
+		assertThrows(IllegalStateException.class, () -> uploadScheduler.tryStart("user", "broken", 1, () -> {
+			throw new IllegalStateException("Upload can't start");
+		}));
+		
+		assertEquals(0, uploadScheduler.getActiveUploads());
+		assertTrue(tryStart(uploadScheduler, "user", "next"));
+		
+	}
+	
+	private UploadScheduler newUploadScheduler(int maxConcurrentUploads, boolean smallFirst,
+	                                           Map<String, Integer> userWeights) {
+		var uploadScheduler = new UploadScheduler(null, new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(uploadScheduler, "maxConcurrentUploads", maxConcurrentUploads);
+		ReflectionTestUtils.setField(uploadScheduler, "smallFirst", smallFirst);
+		ReflectionTestUtils.setField(uploadScheduler, "userWeights", userWeights);
+		uploadScheduler.init();
+		return uploadScheduler;
+	}
+	
+	private void submit(UploadScheduler uploadScheduler, String userId, String fileName, long size) {
+		uploadScheduler.submit(userId, fileName, size, () -> start(fileName));
+	}
+	
+	private boolean tryStart(UploadScheduler uploadScheduler, String userId, String fileName) {
+		return uploadScheduler.tryStart(userId, fileName, 1, () -> start(fileName));
+	}
+	
+	private CompletableFuture<Void> start(String fileName) {
+		var finished = new CompletableFuture<Void>();
+		running.put(fileName, finished);
+		started.add(fileName);
+		return finished;
+	}
+	
+	// Finishes first, then every upload right after it started, and returns the order they started in
+	private List<String> finishOneByOne(String first, int count) throws InterruptedException {
+		
+		var order = new ArrayList<String>();
+		var current = first;
+		
+		for (var i = 0; i < count; i++) {
+			running.get(current).complete(null);
+			current = nextStarted();
+			order.add(current);
+		}
+		
+		return order;
+		
+	}
+	
+	private String nextStarted() throws InterruptedException {
+		var fileName = started.poll(5, TimeUnit.SECONDS);
+		assertNotNull(fileName, "No upload started");
+		return fileName;
+	}
+	
+	// A slot is handed back asynchronously once the upload's future completes
+	private static void awaitActiveUploads(UploadScheduler uploadScheduler, int activeUploads)
+		throws InterruptedException {
+		var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (uploadScheduler.getActiveUploads() != activeUploads && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(activeUploads, uploadScheduler.getActiveUploads());
+	}
+	
+}